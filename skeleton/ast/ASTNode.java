@@ -7,4 +7,8 @@ public abstract class ASTNode {
     ASTNode(Location loc) {
         this.loc = loc;
     }
+
+    public Location getLocation() {
+        return loc;
+    }
 }
@@ -3,6 +3,7 @@ package ast;
 public class AssignStmt extends Stmt {
     private final String name;
     private final Expr expr;
+    VarDecl decl;
 
     public AssignStmt(String name, Expr expr, Location loc) {
         super(loc);
@@ -17,4 +18,12 @@ public class AssignStmt extends Stmt {
     public Expr getExpr() {
         return expr;
     }
+
+    public VarDecl getDecl() {
+        return decl;
+    }
+
+    public int getSlot() {
+        return decl != null ? decl.getSlot() : -1;
+    }
 }
\ No newline at end of file
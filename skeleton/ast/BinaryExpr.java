@@ -18,6 +18,7 @@ public class BinaryExpr extends Expr {
     final Expr expr1;
     final int operator;
     final Expr expr2;
+    boolean parallel;
 
     public BinaryExpr(Expr expr1, int operator, Expr expr2, Location loc) {
         super(loc);
@@ -38,6 +39,11 @@ public class BinaryExpr extends Expr {
         return expr2;
     }
 
+    /** Whether the Parallelizer proved the sides independent and worth evaluating in parallel. */
+    public boolean isParallel() {
+        return parallel;
+    }
+
     // @Override
     // public String toString() {
     // String s = null;
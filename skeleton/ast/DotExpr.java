@@ -3,6 +3,7 @@ package ast;
 public class DotExpr extends Expr {
     private final Expr left;
     private final Expr right;
+    boolean parallel;
 
     public DotExpr(Expr left, Expr right, Location loc) {
         super(loc);
@@ -17,4 +18,9 @@ public class DotExpr extends Expr {
     public Expr getRight() {
         return right;
     }
+
+    /** Whether the Parallelizer proved the sides independent and worth evaluating in parallel. */
+    public boolean isParallel() {
+        return parallel;
+    }
 }
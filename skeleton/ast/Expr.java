@@ -1,8 +1,18 @@
 package ast;
 
 public abstract class Expr extends ASTNode {
+    Type staticType;
 
     Expr(Location loc) {
         super(loc);
     }
+
+    /**
+     * The type StaticChecker proved for this expression: a value of it is
+     * always a Long for INT and a HeapObject or nil for REF. Conditions are
+     * not values and have none.
+     */
+    public Type getStaticType() {
+        return staticType;
+    }
 }
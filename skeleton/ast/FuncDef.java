@@ -8,6 +8,10 @@ public class FuncDef extends ASTNode {
     private final boolean isMutable;
     private final List<VarDecl> params;
     private final List<Stmt> body;
+    int frameSize;
+    boolean pure;
+    boolean allocates;
+    int selfCalls;
 
     public FuncDef(String name, Type returnType, boolean isMutable, List<VarDecl> params, List<Stmt> body,
             Location loc) {
@@ -38,4 +42,38 @@ public class FuncDef extends ASTNode {
     public List<Stmt> getBody() {
         return body;
     }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** Whether the PurityAnalysis proved that calls have no effect besides their result. */
+    public boolean isPure() {
+        return pure;
+    }
+
+    /** Whether the PurityAnalysis found that calls may allocate a cell, directly or through a callee. */
+    public boolean allocates() {
+        return allocates;
+    }
+
+    /**
+     * Whether calls may be answered from a MemoCache: the function is pure,
+     * does not allocate, and takes and returns only ints, so equal arguments
+     * give equal results whatever the heap holds, and skipping a call does
+     * not change when the heap runs out. It must also call itself from more
+     * than one place, like fib: only such a function repeats arguments often
+     * enough to pay for the lookups, and any other is left to the JIT.
+     */
+    public boolean isMemoizable() {
+        if (!pure || allocates || selfCalls < 2 || returnType != Type.INT) {
+            return false;
+        }
+        for (VarDecl param : params) {
+            if (param.getType() != Type.INT) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
\ No newline at end of file
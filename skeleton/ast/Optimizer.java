@@ -0,0 +1,691 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Rewrites a checked ast.Program into an equivalent one that does less work
+ * when it runs. It runs after the StaticChecker, so it never hides a static
+ * error, and keeps the types the checker recorded; the result must be
+ * resolved again before it is lowered.
+ *
+ * Level 1 folds constant int expressions and conditions, decides ifs and
+ * whiles whose condition is constant, and drops statements that follow a
+ * return or an endless loop. Level 2 also inlines small non-recursive
+ * functions: a call to a function that only returns an expression becomes
+ * that expression, and a call statement becomes a block that binds the
+ * parameters and runs the body. Level 0 leaves the program alone.
+ */
+public class Optimizer {
+
+    /** The most AST nodes a function body may have to be inlined. */
+    static final int INLINE_SIZE = 24;
+
+    private final int level;
+    private final Map<String, FuncDef> funcDefs = new HashMap<>();
+    private final Set<String> recursive = new HashSet<>();
+    private final Map<String, FuncDef> optimized = new HashMap<>();
+    private int inlined;
+
+    public static Program optimize(Program program, int level) {
+        if (level == 0) {
+            return program;
+        }
+        Optimizer optimizer = new Optimizer(program, level);
+        List<FuncDef> funcDefList = new ArrayList<>();
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            funcDefList.add(optimizer.optimizedFunction(funcDef.getName()));
+        }
+        return new Program(funcDefList, program.getLocation());
+    }
+
+    private Optimizer(Program program, int level) {
+        this.level = level;
+        Map<String, Set<String>> callees = new HashMap<>();
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            funcDefs.put(funcDef.getName(), funcDef);
+            Set<String> names = new HashSet<>();
+            for (Stmt stmt : funcDef.getBody()) {
+                collectCallees(stmt, names);
+            }
+            callees.put(funcDef.getName(), names);
+        }
+        for (String name : funcDefs.keySet()) {
+            if (reaches(name, name, callees, new HashSet<>())) {
+                recursive.add(name);
+            }
+        }
+    }
+
+    private static boolean reaches(String from, String to, Map<String, Set<String>> callees, Set<String> seen) {
+        for (String callee : callees.getOrDefault(from, Set.of())) {
+            if (callee.equals(to) || (seen.add(callee) && reaches(callee, to, callees, seen))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FuncDef optimizedFunction(String name) {
+        FuncDef funcDef = optimized.get(name);
+        if (funcDef == null) {
+            FuncDef original = funcDefs.get(name);
+            funcDef = new FuncDef(name, original.getReturnType(), original.isMutable(), original.getParams(),
+                    optimizeStmts(original.getBody()), original.getLocation());
+            optimized.put(name, funcDef);
+        }
+        return funcDef;
+    }
+
+    // Statements
+
+    private List<Stmt> optimizeStmts(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            Stmt optimizedStmt = optimizeStmt(stmt);
+            if (optimizedStmt != null) {
+                result.add(optimizedStmt);
+                if (!completes(optimizedStmt)) {
+                    // The rest is unreachable
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the optimized statement, or null if it does nothing. */
+    private Stmt optimizeStmt(Stmt stmt) {
+        if (stmt instanceof VarDecl) {
+            VarDecl varDecl = (VarDecl) stmt;
+            return new VarDecl(varDecl.getName(), varDecl.getType(), optimizeExpr(varDecl.getInitExpr()),
+                    varDecl.isMutable(), varDecl.getLocation());
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assignStmt = (AssignStmt) stmt;
+            return new AssignStmt(assignStmt.getName(), optimizeExpr(assignStmt.getExpr()), assignStmt.getLocation());
+        } else if (stmt instanceof PrintStmt) {
+            return new PrintStmt(optimizeExpr(((PrintStmt) stmt).getExpr()), stmt.getLocation());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            Expr condition = optimizeCond(ifStmt.getCondition());
+            Boolean value = constantCond(condition);
+            if (value != null) {
+                Stmt taken = value ? ifStmt.getThenStmt() : ifStmt.getElseStmt();
+                return taken != null ? optimizeScoped(taken) : null;
+            }
+            Stmt elseStmt = ifStmt.getElseStmt() != null ? optimizeScoped(ifStmt.getElseStmt()) : null;
+            return new IfStmt(condition, optimizeScoped(ifStmt.getThenStmt()), elseStmt, ifStmt.getLocation());
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            Expr condition = optimizeCond(whileStmt.getCondition());
+            if (Boolean.FALSE.equals(constantCond(condition))) {
+                return null;
+            }
+            return new WhileStmt(condition, optimizeScoped(whileStmt.getBody()), whileStmt.getLocation());
+        } else if (stmt instanceof BlockStmt) {
+            return new BlockStmt(optimizeStmts(((BlockStmt) stmt).getStatements()), stmt.getLocation());
+        } else if (stmt instanceof ReturnStmt) {
+            return new ReturnStmt(optimizeExpr(((ReturnStmt) stmt).getExpr()), stmt.getLocation());
+        } else if (stmt instanceof CallStmt) {
+            CallStmt callStmt = (CallStmt) stmt;
+            List<Expr> args = optimizeExprs(callStmt.getArgs());
+            Stmt inlinedStmt = inlineCallStmt(callStmt, args);
+            return inlinedStmt != null ? inlinedStmt : new CallStmt(callStmt.getName(), args, callStmt.getLocation());
+        }
+        throw new RuntimeException("Unknown statement type");
+    }
+
+    /**
+     * The single statement of an if, else or while is its own scope, so it
+     * stays in a block when it is spliced into the enclosing statements.
+     */
+    private Stmt optimizeScoped(Stmt stmt) {
+        Stmt optimizedStmt = optimizeStmt(stmt);
+        if (optimizedStmt instanceof BlockStmt) {
+            return optimizedStmt;
+        }
+        List<Stmt> stmts = new ArrayList<>();
+        if (optimizedStmt != null) {
+            stmts.add(optimizedStmt);
+        }
+        return new BlockStmt(stmts, stmt.getLocation());
+    }
+
+    /** Whether control can reach the statement after an optimized stmt. */
+    private static boolean completes(Stmt stmt) {
+        if (stmt instanceof ReturnStmt) {
+            return false;
+        } else if (stmt instanceof WhileStmt) {
+            // Quandary has no break: only a return leaves an endless loop
+            return !Boolean.TRUE.equals(constantCond(((WhileStmt) stmt).getCondition()));
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return ifStmt.getElseStmt() == null || completes(ifStmt.getThenStmt()) || completes(ifStmt.getElseStmt());
+        } else if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                if (!completes(s)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Conditions
+
+    private Expr optimizeCond(Expr cond) {
+        if (cond instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) cond;
+            int operator = binaryExpr.getOperator();
+            if (operator == BinaryExpr.AND || operator == BinaryExpr.OR) {
+                Expr left = optimizeCond(binaryExpr.getLeftExpr());
+                Expr right = optimizeCond(binaryExpr.getRightExpr());
+                Boolean leftValue = constantCond(left);
+                if (leftValue != null) {
+                    // true && c and false || c are c; false && c and true || c never evaluate c
+                    return leftValue == (operator == BinaryExpr.AND) ? right : left;
+                }
+                if (Boolean.valueOf(operator == BinaryExpr.AND).equals(constantCond(right))) {
+                    return left;
+                }
+                return new BinaryExpr(left, operator, right, cond.getLocation());
+            }
+            return new BinaryExpr(optimizeExpr(binaryExpr.getLeftExpr()), operator,
+                    optimizeExpr(binaryExpr.getRightExpr()), cond.getLocation());
+        } else if (cond instanceof UnaryExpr) {
+            return new UnaryExpr(UnaryExpr.NOT, optimizeCond(((UnaryExpr) cond).getExpr()), cond.getLocation());
+        }
+        throw new RuntimeException("Unknown condition type");
+    }
+
+    /** Returns the value of an optimized condition, or null if it is not constant. */
+    private static Boolean constantCond(Expr cond) {
+        if (cond instanceof UnaryExpr) {
+            Boolean value = constantCond(((UnaryExpr) cond).getExpr());
+            return value != null ? !value : null;
+        }
+        BinaryExpr binaryExpr = (BinaryExpr) cond;
+        int operator = binaryExpr.getOperator();
+        if (operator == BinaryExpr.AND || operator == BinaryExpr.OR) {
+            Boolean left = constantCond(binaryExpr.getLeftExpr());
+            Boolean right = constantCond(binaryExpr.getRightExpr());
+            if (left == null || right == null) {
+                return null;
+            }
+            return operator == BinaryExpr.AND ? left && right : left || right;
+        }
+        if (!(binaryExpr.getLeftExpr() instanceof ConstExpr) || !(binaryExpr.getRightExpr() instanceof ConstExpr)) {
+            return null;
+        }
+        long left = (Long) ((ConstExpr) binaryExpr.getLeftExpr()).getValue();
+        long right = (Long) ((ConstExpr) binaryExpr.getRightExpr()).getValue();
+        switch (operator) {
+            case BinaryExpr.LT:
+                return left < right;
+            case BinaryExpr.GT:
+                return left > right;
+            case BinaryExpr.LEQ:
+                return left <= right;
+            case BinaryExpr.GEQ:
+                return left >= right;
+            case BinaryExpr.EQEQ:
+                return left == right;
+            case BinaryExpr.NEQ:
+                return left != right;
+            default:
+                throw new RuntimeException("Unknown comparison operator");
+        }
+    }
+
+    // Expressions
+
+    private List<Expr> optimizeExprs(List<Expr> exprs) {
+        List<Expr> result = new ArrayList<>();
+        for (Expr expr : exprs) {
+            result.add(optimizeExpr(expr));
+        }
+        return result;
+    }
+
+    private Expr optimizeExpr(Expr expr) {
+        if (expr instanceof ConstExpr || expr instanceof NilExpr || expr instanceof VarExpr) {
+            return expr;
+        } else if (expr instanceof TypeCastExpr) {
+            TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
+            Expr operand = optimizeExpr(typeCastExpr.getExpr());
+            if (operand instanceof ConstExpr && typeCastExpr.getType() == Type.INT) {
+                return operand;
+            }
+            return typed(new TypeCastExpr(typeCastExpr.getType(), operand, expr.getLocation()), expr);
+        } else if (expr instanceof DotExpr) {
+            DotExpr dotExpr = (DotExpr) expr;
+            return typed(new DotExpr(optimizeExpr(dotExpr.getLeft()), optimizeExpr(dotExpr.getRight()),
+                    expr.getLocation()), expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            Expr left = optimizeExpr(binaryExpr.getLeftExpr());
+            Expr right = optimizeExpr(binaryExpr.getRightExpr());
+            if (left instanceof ConstExpr && right instanceof ConstExpr) {
+                return constant(arithmetic(binaryExpr.getOperator(), (Long) ((ConstExpr) left).getValue(),
+                        (Long) ((ConstExpr) right).getValue()), expr.getLocation());
+            }
+            return typed(new BinaryExpr(left, binaryExpr.getOperator(), right, expr.getLocation()), expr);
+        } else if (expr instanceof UnaryExpr) {
+            Expr operand = optimizeExpr(((UnaryExpr) expr).getExpr());
+            if (operand instanceof ConstExpr) {
+                return constant(-(Long) ((ConstExpr) operand).getValue(), expr.getLocation());
+            }
+            return typed(new UnaryExpr(UnaryExpr.MINUS, operand, expr.getLocation()), expr);
+        } else if (expr instanceof CallExpr) {
+            CallExpr callExpr = (CallExpr) expr;
+            List<Expr> args = optimizeExprs(callExpr.getArguments());
+            Expr inlinedExpr = inlineCallExpr(callExpr, args);
+            if (inlinedExpr != null) {
+                return inlinedExpr;
+            }
+            return typed(new CallExpr(callExpr.getFuncName(), args, expr.getLocation()), expr);
+        } else if (expr instanceof ConcurrentExpr) {
+            // Both sides still run in parallel, even when they are constant
+            ConcurrentExpr concurrentExpr = (ConcurrentExpr) expr;
+            return typed(new ConcurrentExpr(optimizeExpr(concurrentExpr.getLeft()), concurrentExpr.getOperator(),
+                    optimizeExpr(concurrentExpr.getRight()), expr.getLocation()), expr);
+        }
+        throw new RuntimeException("Unknown expression type");
+    }
+
+    private static long arithmetic(int operator, long left, long right) {
+        switch (operator) {
+            case BinaryExpr.PLUS:
+                return left + right;
+            case BinaryExpr.MINUS:
+                return left - right;
+            case BinaryExpr.TIMES:
+                return left * right;
+            default:
+                throw new RuntimeException("Unknown arithmetic operator");
+        }
+    }
+
+    private static ConstExpr constant(long value, Location loc) {
+        ConstExpr constExpr = new ConstExpr(value, loc);
+        constExpr.staticType = Type.INT;
+        return constExpr;
+    }
+
+    private static <T extends Expr> T typed(T expr, Expr original) {
+        expr.staticType = original.staticType;
+        return expr;
+    }
+
+    // Inlining
+
+    /** Returns the optimized callee if a call to name may be inlined, else null. */
+    private FuncDef inlineCandidate(String name) {
+        if (level < 2 || !funcDefs.containsKey(name) || recursive.contains(name)) {
+            return null;
+        }
+        FuncDef callee = optimizedFunction(name);
+        int size = 0;
+        for (Stmt stmt : callee.getBody()) {
+            size += size(stmt);
+        }
+        return size <= INLINE_SIZE ? callee : null;
+    }
+
+    /**
+     * Inlines a call to a function whose body is a single return. Trivial
+     * arguments are substituted wherever their parameter is used. Any other
+     * argument must be used exactly once, in parameter order, and nothing
+     * that can fail or has an effect may be evaluated before the last of
+     * them, so the arguments' effects happen in the same order as before.
+     */
+    private Expr inlineCallExpr(CallExpr callExpr, List<Expr> args) {
+        FuncDef callee = inlineCandidate(callExpr.getFuncName());
+        if (callee == null || callee.getBody().size() != 1 || !(callee.getBody().get(0) instanceof ReturnStmt)) {
+            return null;
+        }
+        Expr body = ((ReturnStmt) callee.getBody().get(0)).getExpr();
+        Map<String, Expr> substitutions = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            String param = callee.getParams().get(i).getName();
+            substitutions.put(param, args.get(i));
+            if (!isTrivial(args.get(i))) {
+                pending.add(param);
+            }
+        }
+        if (!pending.isEmpty() && !evaluatesInOrder(body, pending, new int[1])) {
+            return null;
+        }
+        for (String param : pending) {
+            if (uses(body, param) != 1) {
+                return null;
+            }
+        }
+        return copyExpr(body, varExpr -> {
+            Expr arg = substitutions.get(varExpr.getName());
+            return isTrivial(arg) ? copyExpr(arg, v -> typed(new VarExpr(v.getName(), v.getLocation()), v)) : arg;
+        });
+    }
+
+    /**
+     * Inlines a call statement as a block: the parameters, renamed apart,
+     * are bound to the arguments in order, then the body runs. The callee's
+     * only return must be its last statement; its value is evaluated into
+     * a local unless that can have no effect.
+     */
+    private Stmt inlineCallStmt(CallStmt callStmt, List<Expr> args) {
+        FuncDef callee = inlineCandidate(callStmt.getName());
+        if (callee == null) {
+            return null;
+        }
+        List<Stmt> body = callee.getBody();
+        if (!(body.get(body.size() - 1) instanceof ReturnStmt)) {
+            return null;
+        }
+        for (int i = 0; i < body.size() - 1; i++) {
+            if (containsReturn(body.get(i))) {
+                return null;
+            }
+        }
+        String suffix = "#" + inlined++;
+        Function<VarExpr, Expr> rename = v -> typed(new VarExpr(v.getName() + suffix, v.getLocation()), v);
+        List<Stmt> stmts = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            VarDecl param = callee.getParams().get(i);
+            stmts.add(new VarDecl(param.getName() + suffix, param.getType(), args.get(i), param.isMutable(),
+                    callStmt.getLocation()));
+        }
+        for (int i = 0; i < body.size() - 1; i++) {
+            stmts.add(copyStmt(body.get(i), suffix, rename));
+        }
+        Expr result = ((ReturnStmt) body.get(body.size() - 1)).getExpr();
+        if (!isTrivial(result)) {
+            stmts.add(new VarDecl("return" + suffix, callee.getReturnType(), copyExpr(result, rename), false,
+                    result.getLocation()));
+        }
+        return new BlockStmt(stmts, callStmt.getLocation());
+    }
+
+    private static boolean isTrivial(Expr expr) {
+        return expr instanceof ConstExpr || expr instanceof NilExpr || expr instanceof VarExpr;
+    }
+
+    /**
+     * Walks expr in evaluation order and checks that the params are used in
+     * order before anything that can fail or has an effect is evaluated.
+     * next counts the params seen so far.
+     */
+    private static boolean evaluatesInOrder(Expr expr, List<String> params, int[] next) {
+        if (next[0] == params.size()) {
+            return true;
+        }
+        if (expr instanceof ConstExpr || expr instanceof NilExpr) {
+            return true;
+        } else if (expr instanceof VarExpr) {
+            int index = params.indexOf(((VarExpr) expr).getName());
+            if (index < 0) {
+                return true;
+            }
+            return index == next[0]++;
+        } else if (expr instanceof TypeCastExpr) {
+            TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
+            if (!evaluatesInOrder(typeCastExpr.getExpr(), params, next)) {
+                return false;
+            }
+            // Only downcasts from Q can fail
+            return next[0] == params.size() || typeCastExpr.getType() == Type.Q
+                    || typeCastExpr.getType() == typeCastExpr.getExpr().getStaticType();
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            return evaluatesInOrder(binaryExpr.getLeftExpr(), params, next)
+                    && evaluatesInOrder(binaryExpr.getRightExpr(), params, next);
+        } else if (expr instanceof UnaryExpr) {
+            return evaluatesInOrder(((UnaryExpr) expr).getExpr(), params, next);
+        } else if (expr instanceof DotExpr) {
+            // Allocates once both sides are evaluated
+            DotExpr dotExpr = (DotExpr) expr;
+            return evaluatesInOrder(dotExpr.getLeft(), params, next)
+                    && evaluatesInOrder(dotExpr.getRight(), params, next) && next[0] == params.size();
+        } else if (expr instanceof CallExpr) {
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                if (!evaluatesInOrder(arg, params, next)) {
+                    return false;
+                }
+            }
+            return next[0] == params.size();
+        }
+        // The sides of a ConcurrentExpr run in no particular order
+        return false;
+    }
+
+    private static int uses(Expr expr, String name) {
+        if (expr instanceof VarExpr) {
+            return ((VarExpr) expr).getName().equals(name) ? 1 : 0;
+        } else if (expr instanceof TypeCastExpr) {
+            return uses(((TypeCastExpr) expr).getExpr(), name);
+        } else if (expr instanceof BinaryExpr) {
+            return uses(((BinaryExpr) expr).getLeftExpr(), name) + uses(((BinaryExpr) expr).getRightExpr(), name);
+        } else if (expr instanceof UnaryExpr) {
+            return uses(((UnaryExpr) expr).getExpr(), name);
+        } else if (expr instanceof DotExpr) {
+            return uses(((DotExpr) expr).getLeft(), name) + uses(((DotExpr) expr).getRight(), name);
+        } else if (expr instanceof CallExpr) {
+            int count = 0;
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                count += uses(arg, name);
+            }
+            return count;
+        } else if (expr instanceof ConcurrentExpr) {
+            return uses(((ConcurrentExpr) expr).getLeft(), name) + uses(((ConcurrentExpr) expr).getRight(), name);
+        }
+        return 0;
+    }
+
+    private static boolean containsReturn(Stmt stmt) {
+        if (stmt instanceof ReturnStmt) {
+            return true;
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return containsReturn(ifStmt.getThenStmt())
+                    || (ifStmt.getElseStmt() != null && containsReturn(ifStmt.getElseStmt()));
+        } else if (stmt instanceof WhileStmt) {
+            return containsReturn(((WhileStmt) stmt).getBody());
+        } else if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                if (containsReturn(s)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Copies stmt, renaming its variables with suffix. */
+    private static Stmt copyStmt(Stmt stmt, String suffix, Function<VarExpr, Expr> rename) {
+        if (stmt instanceof VarDecl) {
+            VarDecl varDecl = (VarDecl) stmt;
+            return new VarDecl(varDecl.getName() + suffix, varDecl.getType(), copyExpr(varDecl.getInitExpr(), rename),
+                    varDecl.isMutable(), varDecl.getLocation());
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assignStmt = (AssignStmt) stmt;
+            return new AssignStmt(assignStmt.getName() + suffix, copyExpr(assignStmt.getExpr(), rename),
+                    assignStmt.getLocation());
+        } else if (stmt instanceof PrintStmt) {
+            return new PrintStmt(copyExpr(((PrintStmt) stmt).getExpr(), rename), stmt.getLocation());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            Stmt elseStmt = ifStmt.getElseStmt() != null ? copyStmt(ifStmt.getElseStmt(), suffix, rename) : null;
+            return new IfStmt(copyExpr(ifStmt.getCondition(), rename), copyStmt(ifStmt.getThenStmt(), suffix, rename),
+                    elseStmt, ifStmt.getLocation());
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            return new WhileStmt(copyExpr(whileStmt.getCondition(), rename),
+                    copyStmt(whileStmt.getBody(), suffix, rename), whileStmt.getLocation());
+        } else if (stmt instanceof BlockStmt) {
+            List<Stmt> stmts = new ArrayList<>();
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                stmts.add(copyStmt(s, suffix, rename));
+            }
+            return new BlockStmt(stmts, stmt.getLocation());
+        } else if (stmt instanceof CallStmt) {
+            CallStmt callStmt = (CallStmt) stmt;
+            return new CallStmt(callStmt.getName(), copyExprs(callStmt.getArgs(), rename), callStmt.getLocation());
+        }
+        throw new RuntimeException("Unknown statement type");
+    }
+
+    private static List<Expr> copyExprs(List<Expr> exprs, Function<VarExpr, Expr> vars) {
+        List<Expr> result = new ArrayList<>();
+        for (Expr expr : exprs) {
+            result.add(copyExpr(expr, vars));
+        }
+        return result;
+    }
+
+    /** Copies expr, or a condition, replacing each variable use with vars applied to it. */
+    private static Expr copyExpr(Expr expr, Function<VarExpr, Expr> vars) {
+        if (expr instanceof ConstExpr) {
+            return constant((Long) ((ConstExpr) expr).getValue(), expr.getLocation());
+        } else if (expr instanceof NilExpr) {
+            return typed(new NilExpr(expr.getLocation()), expr);
+        } else if (expr instanceof VarExpr) {
+            return vars.apply((VarExpr) expr);
+        } else if (expr instanceof TypeCastExpr) {
+            TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
+            return typed(new TypeCastExpr(typeCastExpr.getType(), copyExpr(typeCastExpr.getExpr(), vars),
+                    expr.getLocation()), expr);
+        } else if (expr instanceof DotExpr) {
+            DotExpr dotExpr = (DotExpr) expr;
+            return typed(new DotExpr(copyExpr(dotExpr.getLeft(), vars), copyExpr(dotExpr.getRight(), vars),
+                    expr.getLocation()), expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            return typed(new BinaryExpr(copyExpr(binaryExpr.getLeftExpr(), vars), binaryExpr.getOperator(),
+                    copyExpr(binaryExpr.getRightExpr(), vars), expr.getLocation()), expr);
+        } else if (expr instanceof UnaryExpr) {
+            UnaryExpr unaryExpr = (UnaryExpr) expr;
+            return typed(new UnaryExpr(unaryExpr.getOperator(), copyExpr(unaryExpr.getExpr(), vars),
+                    expr.getLocation()), expr);
+        } else if (expr instanceof CallExpr) {
+            CallExpr callExpr = (CallExpr) expr;
+            return typed(new CallExpr(callExpr.getFuncName(), copyExprs(callExpr.getArguments(), vars),
+                    expr.getLocation()), expr);
+        } else if (expr instanceof ConcurrentExpr) {
+            ConcurrentExpr concurrentExpr = (ConcurrentExpr) expr;
+            return typed(new ConcurrentExpr(copyExpr(concurrentExpr.getLeft(), vars), concurrentExpr.getOperator(),
+                    copyExpr(concurrentExpr.getRight(), vars), expr.getLocation()), expr);
+        }
+        throw new RuntimeException("Unknown expression type");
+    }
+
+    private static int size(Stmt stmt) {
+        if (stmt instanceof VarDecl) {
+            return 1 + size(((VarDecl) stmt).getInitExpr());
+        } else if (stmt instanceof AssignStmt) {
+            return 1 + size(((AssignStmt) stmt).getExpr());
+        } else if (stmt instanceof PrintStmt) {
+            return 1 + size(((PrintStmt) stmt).getExpr());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return 1 + size(ifStmt.getCondition()) + size(ifStmt.getThenStmt())
+                    + (ifStmt.getElseStmt() != null ? size(ifStmt.getElseStmt()) : 0);
+        } else if (stmt instanceof WhileStmt) {
+            return 1 + size(((WhileStmt) stmt).getCondition()) + size(((WhileStmt) stmt).getBody());
+        } else if (stmt instanceof BlockStmt) {
+            int size = 1;
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                size += size(s);
+            }
+            return size;
+        } else if (stmt instanceof ReturnStmt) {
+            return 1 + size(((ReturnStmt) stmt).getExpr());
+        } else if (stmt instanceof CallStmt) {
+            int size = 1;
+            for (Expr arg : ((CallStmt) stmt).getArgs()) {
+                size += size(arg);
+            }
+            return size;
+        }
+        throw new RuntimeException("Unknown statement type");
+    }
+
+    private static int size(Expr expr) {
+        if (expr instanceof TypeCastExpr) {
+            return 1 + size(((TypeCastExpr) expr).getExpr());
+        } else if (expr instanceof DotExpr) {
+            return 1 + size(((DotExpr) expr).getLeft()) + size(((DotExpr) expr).getRight());
+        } else if (expr instanceof BinaryExpr) {
+            return 1 + size(((BinaryExpr) expr).getLeftExpr()) + size(((BinaryExpr) expr).getRightExpr());
+        } else if (expr instanceof UnaryExpr) {
+            return 1 + size(((UnaryExpr) expr).getExpr());
+        } else if (expr instanceof CallExpr) {
+            int size = 1;
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                size += size(arg);
+            }
+            return size;
+        } else if (expr instanceof ConcurrentExpr) {
+            return 1 + size(((ConcurrentExpr) expr).getLeft()) + size(((ConcurrentExpr) expr).getRight());
+        }
+        return 1;
+    }
+
+    private static void collectCallees(Stmt stmt, Set<String> names) {
+        if (stmt instanceof VarDecl) {
+            collectCallees(((VarDecl) stmt).getInitExpr(), names);
+        } else if (stmt instanceof AssignStmt) {
+            collectCallees(((AssignStmt) stmt).getExpr(), names);
+        } else if (stmt instanceof PrintStmt) {
+            collectCallees(((PrintStmt) stmt).getExpr(), names);
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            collectCallees(ifStmt.getCondition(), names);
+            collectCallees(ifStmt.getThenStmt(), names);
+            if (ifStmt.getElseStmt() != null) {
+                collectCallees(ifStmt.getElseStmt(), names);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            collectCallees(((WhileStmt) stmt).getCondition(), names);
+            collectCallees(((WhileStmt) stmt).getBody(), names);
+        } else if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                collectCallees(s, names);
+            }
+        } else if (stmt instanceof ReturnStmt) {
+            collectCallees(((ReturnStmt) stmt).getExpr(), names);
+        } else if (stmt instanceof CallStmt) {
+            names.add(((CallStmt) stmt).getName());
+            for (Expr arg : ((CallStmt) stmt).getArgs()) {
+                collectCallees(arg, names);
+            }
+        }
+    }
+
+    private static void collectCallees(Expr expr, Set<String> names) {
+        if (expr instanceof TypeCastExpr) {
+            collectCallees(((TypeCastExpr) expr).getExpr(), names);
+        } else if (expr instanceof DotExpr) {
+            collectCallees(((DotExpr) expr).getLeft(), names);
+            collectCallees(((DotExpr) expr).getRight(), names);
+        } else if (expr instanceof BinaryExpr) {
+            collectCallees(((BinaryExpr) expr).getLeftExpr(), names);
+            collectCallees(((BinaryExpr) expr).getRightExpr(), names);
+        } else if (expr instanceof UnaryExpr) {
+            collectCallees(((UnaryExpr) expr).getExpr(), names);
+        } else if (expr instanceof CallExpr) {
+            names.add(((CallExpr) expr).getFuncName());
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                collectCallees(arg, names);
+            }
+        } else if (expr instanceof ConcurrentExpr) {
+            collectCallees(((ConcurrentExpr) expr).getLeft(), names);
+            collectCallees(((ConcurrentExpr) expr).getRight(), names);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Marks the serial +, -, * and . expressions whose sides the engines may
+ * evaluate in parallel, as if they were written as a ConcurrentExpr. Runs
+ * after the PurityAnalysis, with -autopar.
+ *
+ * Both sides must be pure, so neither sees effects of the other, and
+ * neither may fail, directly or in a callee: no cast that can fail, no
+ * left() or right(), which fail on nil, and no allocation, which can run
+ * out of heap. Run in order, a failing left side keeps the right side from
+ * running, while forked, a failure of the right side could win the race
+ * and change the exit code. A side that never finishes needs no rule: run
+ * in order or forked, the expression never completes either way.
+ *
+ * Both sides must also call a costly function, one that loops or recurses,
+ * so that each side is likely to outweigh forking it. Whether a marked
+ * expression really forks is decided when it runs, by how busy the
+ * evaluator pool is.
+ */
+public class Parallelizer {
+
+    private final Map<String, FuncDef> funcDefs = new HashMap<>();
+    private final Set<String> costly = new HashSet<>();
+    private final Set<String> mayFail = new HashSet<>();
+
+    public static void mark(Program program) {
+        Parallelizer parallelizer = new Parallelizer(program);
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            for (Stmt stmt : funcDef.getBody()) {
+                parallelizer.markStmt(stmt);
+            }
+        }
+    }
+
+    private Parallelizer(Program program) {
+        Map<String, Set<String>> callees = new HashMap<>();
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            funcDefs.put(funcDef.getName(), funcDef);
+            Set<String> names = new HashSet<>();
+            List<Expr> exprs = new ArrayList<>();
+            boolean loops = false;
+            for (Stmt stmt : funcDef.getBody()) {
+                PurityAnalysis.isPure(stmt, names);
+                PurityAnalysis.expressions(stmt, exprs);
+                loops |= containsLoop(stmt);
+            }
+            callees.put(funcDef.getName(), names);
+            if (loops) {
+                costly.add(funcDef.getName());
+            }
+            if (!cannotFail(exprs)) {
+                mayFail.add(funcDef.getName());
+            }
+        }
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            if (reaches(funcDef.getName(), funcDef.getName(), callees, new HashSet<>())) {
+                costly.add(funcDef.getName());
+            }
+        }
+        // Callers of costly functions are costly, and callers of functions
+        // that may fail may fail, until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FuncDef funcDef : program.getFuncDefList()) {
+                String name = funcDef.getName();
+                for (String callee : callees.get(name)) {
+                    if (costly.contains(callee) && costly.add(name)) {
+                        changed = true;
+                    }
+                    if (mayFail.contains(callee) && mayFail.add(name)) {
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether none of exprs can fail by itself: a cast only fails if its
+     * operand may have another type, left() and right() fail on nil, and
+     * an allocation fails when the heap runs out.
+     */
+    private static boolean cannotFail(List<Expr> exprs) {
+        for (Expr expr : exprs) {
+            if (PurityAnalysis.allocates(expr)) {
+                return false;
+            } else if (expr instanceof TypeCastExpr) {
+                TypeCastExpr castExpr = (TypeCastExpr) expr;
+                if (castExpr.getExpr().getStaticType() != castExpr.getType()) {
+                    return false;
+                }
+            } else if (expr instanceof CallExpr) {
+                String name = ((CallExpr) expr).getFuncName();
+                if (name.equals("left") || name.equals("right")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean reaches(String from, String to, Map<String, Set<String>> callees, Set<String> seen) {
+        for (String callee : callees.getOrDefault(from, Set.of())) {
+            if (callee.equals(to) || (seen.add(callee) && reaches(callee, to, callees, seen))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsLoop(Stmt stmt) {
+        if (stmt instanceof WhileStmt) {
+            return true;
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return containsLoop(ifStmt.getThenStmt())
+                    || (ifStmt.getElseStmt() != null && containsLoop(ifStmt.getElseStmt()));
+        } else if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                if (containsLoop(s)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Whether side is pure, cannot fail, and calls a costly function. */
+    private boolean worthForking(Expr side) {
+        Set<String> callees = new HashSet<>();
+        List<Expr> exprs = new ArrayList<>();
+        PurityAnalysis.expressions(side, exprs);
+        if (!PurityAnalysis.isPure(side, callees) || !cannotFail(exprs)) {
+            return false;
+        }
+        boolean calls = false;
+        for (String name : callees) {
+            FuncDef callee = funcDefs.get(name);
+            if (callee != null && (!callee.isPure() || mayFail.contains(name))) {
+                return false;
+            }
+            calls |= costly.contains(name);
+        }
+        return calls;
+    }
+
+    private void markStmt(Stmt stmt) {
+        if (stmt instanceof VarDecl) {
+            markExpr(((VarDecl) stmt).getInitExpr());
+        } else if (stmt instanceof AssignStmt) {
+            markExpr(((AssignStmt) stmt).getExpr());
+        } else if (stmt instanceof PrintStmt) {
+            markExpr(((PrintStmt) stmt).getExpr());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            markExpr(ifStmt.getCondition());
+            markStmt(ifStmt.getThenStmt());
+            if (ifStmt.getElseStmt() != null) {
+                markStmt(ifStmt.getElseStmt());
+            }
+        } else if (stmt instanceof WhileStmt) {
+            markExpr(((WhileStmt) stmt).getCondition());
+            markStmt(((WhileStmt) stmt).getBody());
+        } else if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                markStmt(s);
+            }
+        } else if (stmt instanceof ReturnStmt) {
+            markExpr(((ReturnStmt) stmt).getExpr());
+        } else if (stmt instanceof CallStmt) {
+            for (Expr arg : ((CallStmt) stmt).getArgs()) {
+                markExpr(arg);
+            }
+        }
+    }
+
+    /** Marks expr, or a condition, and the expressions inside it. */
+    private void markExpr(Expr expr) {
+        if (expr instanceof TypeCastExpr) {
+            markExpr(((TypeCastExpr) expr).getExpr());
+        } else if (expr instanceof DotExpr) {
+            DotExpr dotExpr = (DotExpr) expr;
+            dotExpr.parallel = worthForking(dotExpr.getLeft()) && worthForking(dotExpr.getRight());
+            markExpr(dotExpr.getLeft());
+            markExpr(dotExpr.getRight());
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            int operator = binaryExpr.getOperator();
+            if (operator == BinaryExpr.PLUS || operator == BinaryExpr.MINUS || operator == BinaryExpr.TIMES) {
+                binaryExpr.parallel = worthForking(binaryExpr.getLeftExpr())
+                        && worthForking(binaryExpr.getRightExpr());
+            }
+            markExpr(binaryExpr.getLeftExpr());
+            markExpr(binaryExpr.getRightExpr());
+        } else if (expr instanceof UnaryExpr) {
+            markExpr(((UnaryExpr) expr).getExpr());
+        } else if (expr instanceof CallExpr) {
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                markExpr(arg);
+            }
+        } else if (expr instanceof ConcurrentExpr) {
+            markExpr(((ConcurrentExpr) expr).getLeft());
+            markExpr(((ConcurrentExpr) expr).getRight());
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package ast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Parsed programs cached in a .qc file next to their source, so that a
+ * program run again skips the lexer and parser. The file holds a header,
+ * the SHA-256 of the source it was parsed from, a CRC32 of the rest, and
+ * the program as the parser built it, with every Location. A file whose
+ * hash differs from the source's is stale, and one whose CRC differs is
+ * corrupt; either is replaced by the next run.
+ *
+ * Nodes are written in preorder, each as a tag followed by its fields;
+ * names are written once and then referred to by index. Change VERSION
+ * whenever the format or the parser's output changes, so that old files
+ * are ignored.
+ */
+public class ProgramCache {
+
+    private static final int MAGIC = 0x51430a00; // "QC\n\0"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 44;
+
+    private static final int NULL = 0;
+    private static final int VAR_DECL = 1;
+    private static final int ASSIGN = 2;
+    private static final int PRINT = 3;
+    private static final int IF = 4;
+    private static final int WHILE = 5;
+    private static final int BLOCK = 6;
+    private static final int RETURN = 7;
+    private static final int CALL_STMT = 8;
+    private static final int CONST = 9;
+    private static final int NIL = 10;
+    private static final int VAR = 11;
+    private static final int CAST = 12;
+    private static final int DOT = 13;
+    private static final int BINARY = 14;
+    private static final int UNARY = 15;
+    private static final int CALL = 16;
+    private static final int CONCURRENT = 17;
+
+    private static final Type[] TYPES = Type.values();
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+
+    private ProgramCache() {
+    }
+
+    /** The cache file of source: foo.q is cached in foo.qc. */
+    public static Path pathFor(Path source) {
+        return source.resolveSibling(source.getFileName() + "c");
+    }
+
+    /**
+     * Returns the program cached in cache if it was parsed from source, or
+     * null if the file is missing, stale, or unreadable. A file that does
+     * not decode to exactly one program, ending at its last byte, counts as
+     * unreadable; the caller then parses the source and rewrites it.
+     */
+    public static Program load(Path cache, byte[] source) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(cache);
+        } catch (IOException ex) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            if (!Arrays.equals(hash, hash(source)) || in.readInt() != crc(bytes, HEADER_BYTES)) {
+                return null;
+            }
+            Program program = new ProgramCache().readProgram(in);
+            return in.read() == -1 ? program : null;
+        } catch (IOException | RuntimeException | StackOverflowError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes program, just parsed from source, to cache. The file is
+     * replaced atomically, so runs that load it concurrently see either the
+     * old or the new one. A program that cannot be cached is skipped.
+     */
+    public static void store(Path cache, byte[] source, Program program) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash(source));
+            out.writeInt(0); // the CRC, once the program is written
+            new ProgramCache().writeProgram(out, program);
+        } catch (IOException ex) {
+            return;
+        }
+        byte[] contents = bytes.toByteArray();
+        int crc = crc(contents, HEADER_BYTES);
+        for (int i = 0; i < 4; i++) {
+            contents[HEADER_BYTES - 4 + i] = (byte) (crc >>> (24 - 8 * i));
+        }
+        Path temp = cache.resolveSibling(cache.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(temp, contents);
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int crc(byte[] bytes, int from) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, from, bytes.length - from);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] hash(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void writeProgram(DataOutputStream out, Program program) throws IOException {
+        writeLocation(out, program.getLocation());
+        out.writeInt(program.getFuncDefList().size());
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            writeName(out, funcDef.getName());
+            out.writeByte(funcDef.getReturnType().ordinal());
+            out.writeBoolean(funcDef.isMutable());
+            writeStmts(out, funcDef.getParams());
+            writeStmts(out, funcDef.getBody());
+            writeLocation(out, funcDef.getLocation());
+        }
+    }
+
+    private void writeStmts(DataOutputStream out, List<? extends Stmt> stmts) throws IOException {
+        out.writeInt(stmts.size());
+        for (Stmt stmt : stmts) {
+            writeStmt(out, stmt);
+        }
+    }
+
+    private void writeStmt(DataOutputStream out, Stmt stmt) throws IOException {
+        if (stmt == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        if (stmt instanceof VarDecl) {
+            VarDecl varDecl = (VarDecl) stmt;
+            out.writeByte(VAR_DECL);
+            writeName(out, varDecl.getName());
+            out.writeByte(varDecl.getType().ordinal());
+            writeExpr(out, varDecl.getInitExpr());
+            out.writeBoolean(varDecl.isMutable());
+        } else if (stmt instanceof AssignStmt) {
+            out.writeByte(ASSIGN);
+            writeName(out, ((AssignStmt) stmt).getName());
+            writeExpr(out, ((AssignStmt) stmt).getExpr());
+        } else if (stmt instanceof PrintStmt) {
+            out.writeByte(PRINT);
+            writeExpr(out, ((PrintStmt) stmt).getExpr());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            out.writeByte(IF);
+            writeExpr(out, ifStmt.getCondition());
+            writeStmt(out, ifStmt.getThenStmt());
+            writeStmt(out, ifStmt.getElseStmt());
+        } else if (stmt instanceof WhileStmt) {
+            out.writeByte(WHILE);
+            writeExpr(out, ((WhileStmt) stmt).getCondition());
+            writeStmt(out, ((WhileStmt) stmt).getBody());
+        } else if (stmt instanceof BlockStmt) {
+            out.writeByte(BLOCK);
+            writeStmts(out, ((BlockStmt) stmt).getStatements());
+        } else if (stmt instanceof ReturnStmt) {
+            out.writeByte(RETURN);
+            writeExpr(out, ((ReturnStmt) stmt).getExpr());
+        } else if (stmt instanceof CallStmt) {
+            out.writeByte(CALL_STMT);
+            writeName(out, ((CallStmt) stmt).getName());
+            writeExprs(out, ((CallStmt) stmt).getArgs());
+        } else {
+            throw new RuntimeException("Unknown statement type");
+        }
+        writeLocation(out, stmt.getLocation());
+    }
+
+    private void writeExprs(DataOutputStream out, List<Expr> exprs) throws IOException {
+        out.writeInt(exprs.size());
+        for (Expr expr : exprs) {
+            writeExpr(out, expr);
+        }
+    }
+
+    private void writeExpr(DataOutputStream out, Expr expr) throws IOException {
+        if (expr == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        if (expr instanceof ConstExpr) {
+            out.writeByte(CONST);
+            out.writeLong((Long) ((ConstExpr) expr).getValue());
+        } else if (expr instanceof NilExpr) {
+            out.writeByte(NIL);
+        } else if (expr instanceof VarExpr) {
+            out.writeByte(VAR);
+            writeName(out, ((VarExpr) expr).getName());
+        } else if (expr instanceof TypeCastExpr) {
+            out.writeByte(CAST);
+            out.writeByte(((TypeCastExpr) expr).getType().ordinal());
+            writeExpr(out, ((TypeCastExpr) expr).getExpr());
+        } else if (expr instanceof DotExpr) {
+            out.writeByte(DOT);
+            writeExpr(out, ((DotExpr) expr).getLeft());
+            writeExpr(out, ((DotExpr) expr).getRight());
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            out.writeByte(BINARY);
+            writeExpr(out, binaryExpr.getLeftExpr());
+            out.writeByte(binaryExpr.getOperator());
+            writeExpr(out, binaryExpr.getRightExpr());
+        } else if (expr instanceof UnaryExpr) {
+            out.writeByte(UNARY);
+            out.writeByte(((UnaryExpr) expr).getOperator());
+            writeExpr(out, ((UnaryExpr) expr).getExpr());
+        } else if (expr instanceof CallExpr) {
+            out.writeByte(CALL);
+            writeName(out, ((CallExpr) expr).getFuncName());
+            writeExprs(out, ((CallExpr) expr).getArguments());
+        } else if (expr instanceof ConcurrentExpr) {
+            ConcurrentExpr concurrentExpr = (ConcurrentExpr) expr;
+            out.writeByte(CONCURRENT);
+            writeExpr(out, concurrentExpr.getLeft());
+            out.writeByte(concurrentExpr.getOperator());
+            writeExpr(out, concurrentExpr.getRight());
+        } else {
+            throw new RuntimeException("Unknown expression type");
+        }
+        writeLocation(out, expr.getLocation());
+    }
+
+    /** A name seen before is its index; a new one is -1 and the name itself. */
+    private void writeName(DataOutputStream out, String name) throws IOException {
+        Integer index = nameIndex.get(name);
+        if (index != null) {
+            out.writeShort(index);
+            return;
+        }
+        if (nameIndex.size() == Short.MAX_VALUE) {
+            throw new IOException("Too many names to cache");
+        }
+        nameIndex.put(name, nameIndex.size());
+        out.writeShort(-1);
+        out.writeUTF(name);
+    }
+
+    private static void writeLocation(DataOutputStream out, Location loc) throws IOException {
+        out.writeInt(loc.line);
+        out.writeInt(loc.column);
+    }
+
+    private Program readProgram(DataInputStream in) throws IOException {
+        Location loc = readLocation(in);
+        int count = readCount(in);
+        List<FuncDef> funcDefs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readName(in);
+            Type returnType = TYPES[in.readByte()];
+            boolean isMutable = in.readBoolean();
+            List<VarDecl> params = new ArrayList<>();
+            for (Stmt param : readStmts(in)) {
+                params.add((VarDecl) param);
+            }
+            List<Stmt> body = readStmts(in);
+            funcDefs.add(new FuncDef(name, returnType, isMutable, params, body, readLocation(in)));
+        }
+        return new Program(funcDefs, loc);
+    }
+
+    private List<Stmt> readStmts(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        List<Stmt> stmts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            stmts.add(readStmt(in));
+        }
+        return stmts;
+    }
+
+    private Stmt readStmt(DataInputStream in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case VAR_DECL: {
+                String name = readName(in);
+                Type type = TYPES[in.readByte()];
+                Expr initExpr = readExpr(in);
+                boolean isMutable = in.readBoolean();
+                return new VarDecl(name, type, initExpr, isMutable, readLocation(in));
+            }
+            case ASSIGN: {
+                String name = readName(in);
+                return new AssignStmt(name, readExpr(in), readLocation(in));
+            }
+            case PRINT:
+                return new PrintStmt(readExpr(in), readLocation(in));
+            case IF: {
+                Expr condition = readExpr(in);
+                Stmt thenStmt = readStmt(in);
+                Stmt elseStmt = readStmt(in);
+                return new IfStmt(condition, thenStmt, elseStmt, readLocation(in));
+            }
+            case WHILE: {
+                Expr condition = readExpr(in);
+                return new WhileStmt(condition, readStmt(in), readLocation(in));
+            }
+            case BLOCK:
+                return new BlockStmt(readStmts(in), readLocation(in));
+            case RETURN:
+                return new ReturnStmt(readExpr(in), readLocation(in));
+            case CALL_STMT: {
+                String name = readName(in);
+                return new CallStmt(name, readExprs(in), readLocation(in));
+            }
+            default:
+                throw new IOException("Unknown statement tag " + tag);
+        }
+    }
+
+    private List<Expr> readExprs(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        List<Expr> exprs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            exprs.add(readExpr(in));
+        }
+        return exprs;
+    }
+
+    private Expr readExpr(DataInputStream in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case CONST:
+                return new ConstExpr(in.readLong(), readLocation(in));
+            case NIL:
+                return new NilExpr(readLocation(in));
+            case VAR:
+                return new VarExpr(readName(in), readLocation(in));
+            case CAST: {
+                Type type = TYPES[in.readByte()];
+                return new TypeCastExpr(type, readExpr(in), readLocation(in));
+            }
+            case DOT: {
+                Expr left = readExpr(in);
+                return new DotExpr(left, readExpr(in), readLocation(in));
+            }
+            case BINARY: {
+                Expr left = readExpr(in);
+                int operator = in.readByte();
+                return new BinaryExpr(left, operator, readExpr(in), readLocation(in));
+            }
+            case UNARY: {
+                int operator = in.readByte();
+                return new UnaryExpr(operator, readExpr(in), readLocation(in));
+            }
+            case CALL: {
+                String name = readName(in);
+                return new CallExpr(name, readExprs(in), readLocation(in));
+            }
+            case CONCURRENT: {
+                Expr left = readExpr(in);
+                int operator = in.readByte();
+                return new ConcurrentExpr(left, operator, readExpr(in), readLocation(in));
+            }
+            default:
+                throw new IOException("Unknown expression tag " + tag);
+        }
+    }
+
+    private String readName(DataInputStream in) throws IOException {
+        int index = in.readShort();
+        if (index >= 0) {
+            return names.get(index);
+        }
+        String name = in.readUTF();
+        names.add(name);
+        return name;
+    }
+
+    /** A list length, which cannot exceed the bytes left since every element takes at least one. */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static Location readLocation(DataInputStream in) throws IOException {
+        return new Location(in.readInt(), in.readInt());
+    }
+}
@@ -0,0 +1,193 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Marks the functions of a checked program that are pure: a call has no
+ * effect besides its result, and equal arguments and heap contents give
+ * equal results. A function is pure if it does not print, does not call
+ * setLeft, setRight, acq, tryAcq, rel, randomInt or free, and only calls
+ * pure functions.
+ *
+ * Pure functions may allocate and read cells. The analysis also marks the
+ * functions that allocate, directly or through a callee: a memoized call
+ * would skip the allocation, and so could hide that the heap runs out.
+ * It counts the places each function calls itself from, which decides
+ * whether memoizing it is worth the lookups.
+ */
+public class PurityAnalysis {
+
+    private static final Set<String> EFFECTS = Set.of("setLeft", "setRight", "acq", "tryAcq", "rel", "randomInt",
+            "free");
+
+    public static void analyze(Program program) {
+        Map<String, FuncDef> funcDefs = new HashMap<>();
+        Map<String, Set<String>> callees = new HashMap<>();
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            funcDefs.put(funcDef.getName(), funcDef);
+            Set<String> names = new HashSet<>();
+            List<Expr> exprs = new ArrayList<>();
+            funcDef.pure = true;
+            for (Stmt stmt : funcDef.getBody()) {
+                funcDef.pure &= isPure(stmt, names);
+                expressions(stmt, exprs);
+            }
+            callees.put(funcDef.getName(), names);
+            funcDef.allocates = false;
+            funcDef.selfCalls = 0;
+            for (Expr expr : exprs) {
+                funcDef.allocates |= allocates(expr);
+                if (expr instanceof CallExpr && ((CallExpr) expr).getFuncName().equals(funcDef.getName())) {
+                    funcDef.selfCalls++;
+                }
+            }
+        }
+        // A function that calls an impure one is impure, and one that calls
+        // an allocating one allocates, until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FuncDef funcDef : program.getFuncDefList()) {
+                for (String name : callees.get(funcDef.getName())) {
+                    FuncDef callee = funcDefs.get(name);
+                    if (callee == null) {
+                        continue;
+                    }
+                    if (funcDef.pure && !callee.pure) {
+                        funcDef.pure = false;
+                        changed = true;
+                    }
+                    if (!funcDef.allocates && callee.allocates) {
+                        funcDef.allocates = true;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Whether expr itself allocates a cell; the expressions inside it are not considered. */
+    static boolean allocates(Expr expr) {
+        return expr instanceof DotExpr
+                || (expr instanceof ConcurrentExpr && ((ConcurrentExpr) expr).getOperator() == BinaryExpr.DOT);
+    }
+
+    /** Adds every expression and condition in stmt to exprs, outermost first. */
+    static void expressions(Stmt stmt, List<Expr> exprs) {
+        if (stmt instanceof VarDecl) {
+            expressions(((VarDecl) stmt).getInitExpr(), exprs);
+        } else if (stmt instanceof AssignStmt) {
+            expressions(((AssignStmt) stmt).getExpr(), exprs);
+        } else if (stmt instanceof PrintStmt) {
+            expressions(((PrintStmt) stmt).getExpr(), exprs);
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            expressions(ifStmt.getCondition(), exprs);
+            expressions(ifStmt.getThenStmt(), exprs);
+            if (ifStmt.getElseStmt() != null) {
+                expressions(ifStmt.getElseStmt(), exprs);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            expressions(((WhileStmt) stmt).getCondition(), exprs);
+            expressions(((WhileStmt) stmt).getBody(), exprs);
+        } else if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                expressions(s, exprs);
+            }
+        } else if (stmt instanceof ReturnStmt) {
+            expressions(((ReturnStmt) stmt).getExpr(), exprs);
+        } else if (stmt instanceof CallStmt) {
+            for (Expr arg : ((CallStmt) stmt).getArgs()) {
+                expressions(arg, exprs);
+            }
+        }
+    }
+
+    /** Adds expr and every expression inside it to exprs, outermost first. */
+    static void expressions(Expr expr, List<Expr> exprs) {
+        exprs.add(expr);
+        if (expr instanceof TypeCastExpr) {
+            expressions(((TypeCastExpr) expr).getExpr(), exprs);
+        } else if (expr instanceof DotExpr) {
+            expressions(((DotExpr) expr).getLeft(), exprs);
+            expressions(((DotExpr) expr).getRight(), exprs);
+        } else if (expr instanceof BinaryExpr) {
+            expressions(((BinaryExpr) expr).getLeftExpr(), exprs);
+            expressions(((BinaryExpr) expr).getRightExpr(), exprs);
+        } else if (expr instanceof UnaryExpr) {
+            expressions(((UnaryExpr) expr).getExpr(), exprs);
+        } else if (expr instanceof CallExpr) {
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                expressions(arg, exprs);
+            }
+        } else if (expr instanceof ConcurrentExpr) {
+            expressions(((ConcurrentExpr) expr).getLeft(), exprs);
+            expressions(((ConcurrentExpr) expr).getRight(), exprs);
+        }
+    }
+
+    /** Whether stmt has no effect of its own; the functions it calls are added to callees. */
+    static boolean isPure(Stmt stmt, Set<String> callees) {
+        if (stmt instanceof VarDecl) {
+            return isPure(((VarDecl) stmt).getInitExpr(), callees);
+        } else if (stmt instanceof AssignStmt) {
+            return isPure(((AssignStmt) stmt).getExpr(), callees);
+        } else if (stmt instanceof PrintStmt) {
+            return false;
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return isPure(ifStmt.getCondition(), callees) & isPure(ifStmt.getThenStmt(), callees)
+                    & (ifStmt.getElseStmt() == null || isPure(ifStmt.getElseStmt(), callees));
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            return isPure(whileStmt.getCondition(), callees) & isPure(whileStmt.getBody(), callees);
+        } else if (stmt instanceof BlockStmt) {
+            boolean pure = true;
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                pure &= isPure(s, callees);
+            }
+            return pure;
+        } else if (stmt instanceof ReturnStmt) {
+            return isPure(((ReturnStmt) stmt).getExpr(), callees);
+        } else if (stmt instanceof CallStmt) {
+            CallStmt callStmt = (CallStmt) stmt;
+            return isPureCall(callStmt.getName(), callStmt.getArgs(), callees);
+        }
+        throw new RuntimeException("Unknown statement type");
+    }
+
+    /** Whether expr, or a condition, has no effect of its own. */
+    static boolean isPure(Expr expr, Set<String> callees) {
+        if (expr instanceof TypeCastExpr) {
+            return isPure(((TypeCastExpr) expr).getExpr(), callees);
+        } else if (expr instanceof DotExpr) {
+            return isPure(((DotExpr) expr).getLeft(), callees) & isPure(((DotExpr) expr).getRight(), callees);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            return isPure(binaryExpr.getLeftExpr(), callees) & isPure(binaryExpr.getRightExpr(), callees);
+        } else if (expr instanceof UnaryExpr) {
+            return isPure(((UnaryExpr) expr).getExpr(), callees);
+        } else if (expr instanceof CallExpr) {
+            CallExpr callExpr = (CallExpr) expr;
+            return isPureCall(callExpr.getFuncName(), callExpr.getArguments(), callees);
+        } else if (expr instanceof ConcurrentExpr) {
+            ConcurrentExpr concurrentExpr = (ConcurrentExpr) expr;
+            return isPure(concurrentExpr.getLeft(), callees) & isPure(concurrentExpr.getRight(), callees);
+        }
+        return true;
+    }
+
+    private static boolean isPureCall(String name, List<Expr> args, Set<String> callees) {
+        boolean pure = !EFFECTS.contains(name);
+        callees.add(name);
+        for (Expr arg : args) {
+            pure &= isPure(arg, callees);
+        }
+        return pure;
+    }
+}
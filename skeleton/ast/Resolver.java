@@ -0,0 +1,127 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns every parameter and local variable of a function a fixed slot in a
+ * flat per-call frame, and points every variable use at its declaration.
+ *
+ * Quandary has no nested functions, so a variable is either a local of the
+ * enclosing function or undefined; the slots of sibling blocks are reused.
+ * Parameters take the first slots. Each use also records its declaration;
+ * uses that do not resolve have no declaration and fail when executed.
+ */
+public class Resolver {
+
+    private final List<Map<String, VarDecl>> scopes = new ArrayList<>();
+    private int nextSlot;
+    private int maxSlot;
+
+    public static void resolve(Program program) {
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            new Resolver().resolveFunction(funcDef);
+        }
+    }
+
+    private void resolveFunction(FuncDef funcDef) {
+        pushScope();
+        for (VarDecl param : funcDef.getParams()) {
+            declare(param);
+        }
+        for (Stmt stmt : funcDef.getBody()) {
+            resolveStmt(stmt);
+        }
+        popScope();
+        funcDef.frameSize = maxSlot;
+    }
+
+    private void resolveStmt(Stmt stmt) {
+        if (stmt instanceof VarDecl) {
+            VarDecl varDecl = (VarDecl) stmt;
+            resolveExpr(varDecl.getInitExpr());
+            declare(varDecl);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assignStmt = (AssignStmt) stmt;
+            resolveExpr(assignStmt.getExpr());
+            assignStmt.decl = lookup(assignStmt.getName());
+        } else if (stmt instanceof PrintStmt) {
+            resolveExpr(((PrintStmt) stmt).getExpr());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            resolveExpr(ifStmt.getCondition());
+            resolveStmt(ifStmt.getThenStmt());
+            if (ifStmt.getElseStmt() != null) {
+                resolveStmt(ifStmt.getElseStmt());
+            }
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            resolveExpr(whileStmt.getCondition());
+            resolveStmt(whileStmt.getBody());
+        } else if (stmt instanceof BlockStmt) {
+            int savedSlot = nextSlot;
+            pushScope();
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                resolveStmt(s);
+            }
+            popScope();
+            nextSlot = savedSlot;
+        } else if (stmt instanceof ReturnStmt) {
+            resolveExpr(((ReturnStmt) stmt).getExpr());
+        } else if (stmt instanceof CallStmt) {
+            for (Expr arg : ((CallStmt) stmt).getArgs()) {
+                resolveExpr(arg);
+            }
+        }
+    }
+
+    private void resolveExpr(Expr expr) {
+        if (expr instanceof VarExpr) {
+            VarExpr varExpr = (VarExpr) expr;
+            varExpr.decl = lookup(varExpr.getName());
+        } else if (expr instanceof TypeCastExpr) {
+            resolveExpr(((TypeCastExpr) expr).getExpr());
+        } else if (expr instanceof DotExpr) {
+            resolveExpr(((DotExpr) expr).getLeft());
+            resolveExpr(((DotExpr) expr).getRight());
+        } else if (expr instanceof BinaryExpr) {
+            resolveExpr(((BinaryExpr) expr).getLeftExpr());
+            resolveExpr(((BinaryExpr) expr).getRightExpr());
+        } else if (expr instanceof UnaryExpr) {
+            resolveExpr(((UnaryExpr) expr).getExpr());
+        } else if (expr instanceof CallExpr) {
+            for (Expr arg : ((CallExpr) expr).getArguments()) {
+                resolveExpr(arg);
+            }
+        } else if (expr instanceof ConcurrentExpr) {
+            resolveExpr(((ConcurrentExpr) expr).getLeft());
+            resolveExpr(((ConcurrentExpr) expr).getRight());
+        }
+    }
+
+    private void declare(VarDecl varDecl) {
+        varDecl.slot = nextSlot++;
+        maxSlot = Math.max(maxSlot, nextSlot);
+        scopes.get(scopes.size() - 1).put(varDecl.getName(), varDecl);
+    }
+
+    private VarDecl lookup(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            VarDecl decl = scopes.get(i).get(name);
+            if (decl != null) {
+                return decl;
+            }
+        }
+        return null;
+    }
+
+    private void pushScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void popScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+}
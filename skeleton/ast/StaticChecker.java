@@ -0,0 +1,299 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The static checks of the language: declarations and scoping, types,
+ * mutability, call arity and returns. It runs after the Resolver and
+ * records the type it proves for every expression, so the engines can
+ * leave out the dynamic checks a checked program never fails: builtins
+ * trust their Ref arguments, == compares ints, same-casts and upcasts
+ * are free and assignments never look up mutability.
+ *
+ * Downcasts from Q are the only types still checked at run time. The
+ * first error found is thrown as a StaticCheckingError.
+ */
+public class StaticChecker {
+
+    public static class StaticCheckingError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StaticCheckingError(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Signature {
+        final Type returnType;
+        final boolean isMutable;
+        final Type[] params;
+
+        Signature(Type returnType, boolean isMutable, Type... params) {
+            this.returnType = returnType;
+            this.isMutable = isMutable;
+            this.params = params;
+        }
+    }
+
+    private static final Map<String, Signature> BUILTINS = new HashMap<>();
+
+    static {
+        BUILTINS.put("randomInt", new Signature(Type.INT, false, Type.INT));
+        BUILTINS.put("left", new Signature(Type.Q, false, Type.REF));
+        BUILTINS.put("right", new Signature(Type.Q, false, Type.REF));
+        BUILTINS.put("isAtom", new Signature(Type.INT, false, Type.Q));
+        BUILTINS.put("isNil", new Signature(Type.INT, false, Type.Q));
+        BUILTINS.put("setLeft", new Signature(Type.INT, true, Type.REF, Type.Q));
+        BUILTINS.put("setRight", new Signature(Type.INT, true, Type.REF, Type.Q));
+        BUILTINS.put("acq", new Signature(Type.INT, true, Type.REF));
+        BUILTINS.put("tryAcq", new Signature(Type.INT, true, Type.REF));
+        BUILTINS.put("rel", new Signature(Type.INT, true, Type.REF));
+    }
+
+    private final Map<String, Signature> functions;
+    private final FuncDef funcDef;
+    private final List<Map<String, VarDecl>> scopes = new ArrayList<>();
+
+    public static void check(Program program) {
+        Map<String, Signature> functions = new HashMap<>(BUILTINS);
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            if (functions.containsKey(funcDef.getName())) {
+                throw error("Function " + funcDef.getName() + " already exists", funcDef);
+            }
+            Type[] params = new Type[funcDef.getParams().size()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = funcDef.getParams().get(i).getType();
+            }
+            functions.put(funcDef.getName(),
+                    new Signature(funcDef.getReturnType(), funcDef.isMutable(), params));
+        }
+        Signature main = functions.get("main");
+        if (main == null) {
+            throw new StaticCheckingError("Function main called without definition");
+        }
+        if (main.params.length != 1 || main.params[0] != Type.INT) {
+            throw new StaticCheckingError("Function main must take one parameter, an integer");
+        }
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            new StaticChecker(functions, funcDef).checkFunction();
+        }
+    }
+
+    private StaticChecker(Map<String, Signature> functions, FuncDef funcDef) {
+        this.functions = functions;
+        this.funcDef = funcDef;
+    }
+
+    private void checkFunction() {
+        pushScope();
+        for (VarDecl param : funcDef.getParams()) {
+            declare(param);
+        }
+        for (Stmt stmt : funcDef.getBody()) {
+            checkStmt(stmt);
+        }
+        popScope();
+        List<Stmt> body = funcDef.getBody();
+        if (body.isEmpty() || !(body.get(body.size() - 1) instanceof ReturnStmt)) {
+            throw new StaticCheckingError("Last statement of " + funcDef.getName() + " must be a return statement");
+        }
+    }
+
+    private void checkStmt(Stmt stmt) {
+        if (stmt instanceof VarDecl) {
+            VarDecl varDecl = (VarDecl) stmt;
+            expect(checkExpr(varDecl.getInitExpr()), varDecl.getType(), varDecl);
+            declare(varDecl);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assignStmt = (AssignStmt) stmt;
+            VarDecl decl = lookup(assignStmt.getName(), assignStmt);
+            if (!decl.isMutable()) {
+                throw error("Can't write to immutable variable " + assignStmt.getName(), assignStmt);
+            }
+            expect(checkExpr(assignStmt.getExpr()), decl.getType(), assignStmt);
+        } else if (stmt instanceof PrintStmt) {
+            checkExpr(((PrintStmt) stmt).getExpr());
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            checkCond(ifStmt.getCondition());
+            checkScoped(ifStmt.getThenStmt());
+            if (ifStmt.getElseStmt() != null) {
+                checkScoped(ifStmt.getElseStmt());
+            }
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            checkCond(whileStmt.getCondition());
+            checkScoped(whileStmt.getBody());
+        } else if (stmt instanceof BlockStmt) {
+            checkScoped(stmt);
+        } else if (stmt instanceof ReturnStmt) {
+            ReturnStmt returnStmt = (ReturnStmt) stmt;
+            expect(checkExpr(returnStmt.getExpr()), funcDef.getReturnType(), returnStmt);
+        } else if (stmt instanceof CallStmt) {
+            CallStmt callStmt = (CallStmt) stmt;
+            if (callStmt.getName().equals("free")) {
+                // The parser turns free statements into calls; free is not a function
+                if (callStmt.getArgs().size() != 1) {
+                    throw error("Parameter count mismatch for call to free", callStmt);
+                }
+                expect(checkExpr(callStmt.getArgs().get(0)), Type.REF, callStmt);
+                return;
+            }
+            Signature callee = checkCall(callStmt.getName(), callStmt.getArgs(), callStmt);
+            if (!callee.isMutable) {
+                throw error("Can't call immutable function " + callStmt.getName() + " from call statement",
+                        callStmt);
+            }
+        }
+    }
+
+    /** A block, or the single statement of an if, else or while, is its own scope. */
+    private void checkScoped(Stmt stmt) {
+        pushScope();
+        if (stmt instanceof BlockStmt) {
+            for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                checkStmt(s);
+            }
+        } else {
+            checkStmt(stmt);
+        }
+        popScope();
+    }
+
+    private Type checkExpr(Expr expr) {
+        expr.staticType = typeOf(expr);
+        return expr.staticType;
+    }
+
+    private Type typeOf(Expr expr) {
+        if (expr instanceof ConstExpr) {
+            return Type.INT;
+        } else if (expr instanceof NilExpr) {
+            return Type.REF;
+        } else if (expr instanceof VarExpr) {
+            VarExpr varExpr = (VarExpr) expr;
+            return lookup(varExpr.getName(), varExpr).getType();
+        } else if (expr instanceof TypeCastExpr) {
+            TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
+            Type from = checkExpr(typeCastExpr.getExpr());
+            Type to = typeCastExpr.getType();
+            if (from != Type.Q && to != Type.Q && from != to) {
+                throw error("Cannot convert between types " + name(to) + " and " + name(from), typeCastExpr);
+            }
+            return to;
+        } else if (expr instanceof DotExpr) {
+            checkExpr(((DotExpr) expr).getLeft());
+            checkExpr(((DotExpr) expr).getRight());
+            return Type.REF;
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            expect(checkExpr(binaryExpr.getLeftExpr()), Type.INT, binaryExpr);
+            expect(checkExpr(binaryExpr.getRightExpr()), Type.INT, binaryExpr);
+            return Type.INT;
+        } else if (expr instanceof UnaryExpr) {
+            UnaryExpr unaryExpr = (UnaryExpr) expr;
+            expect(checkExpr(unaryExpr.getExpr()), Type.INT, unaryExpr);
+            return Type.INT;
+        } else if (expr instanceof CallExpr) {
+            CallExpr callExpr = (CallExpr) expr;
+            return checkCall(callExpr.getFuncName(), callExpr.getArguments(), callExpr).returnType;
+        } else if (expr instanceof ConcurrentExpr) {
+            ConcurrentExpr concurrentExpr = (ConcurrentExpr) expr;
+            if (concurrentExpr.getOperator() == BinaryExpr.DOT) {
+                checkExpr(concurrentExpr.getLeft());
+                checkExpr(concurrentExpr.getRight());
+                return Type.REF;
+            }
+            expect(checkExpr(concurrentExpr.getLeft()), Type.INT, concurrentExpr);
+            expect(checkExpr(concurrentExpr.getRight()), Type.INT, concurrentExpr);
+            return Type.INT;
+        }
+        throw new RuntimeException("Unknown expression type");
+    }
+
+    /** Conditions compare ints and combine other conditions. */
+    private void checkCond(Expr cond) {
+        if (cond instanceof BinaryExpr) {
+            BinaryExpr binaryExpr = (BinaryExpr) cond;
+            if (binaryExpr.getOperator() == BinaryExpr.AND || binaryExpr.getOperator() == BinaryExpr.OR) {
+                checkCond(binaryExpr.getLeftExpr());
+                checkCond(binaryExpr.getRightExpr());
+            } else {
+                expect(checkExpr(binaryExpr.getLeftExpr()), Type.INT, binaryExpr);
+                expect(checkExpr(binaryExpr.getRightExpr()), Type.INT, binaryExpr);
+            }
+        } else if (cond instanceof UnaryExpr) {
+            checkCond(((UnaryExpr) cond).getExpr());
+        }
+    }
+
+    private Signature checkCall(String name, List<Expr> args, ASTNode call) {
+        Signature callee = functions.get(name);
+        if (callee == null) {
+            throw error("Function " + name + " called without definition", call);
+        }
+        if (callee.params.length != args.size()) {
+            throw error("Parameter count mismatch for call to " + name, call);
+        }
+        for (int i = 0; i < args.size(); i++) {
+            expect(checkExpr(args.get(i)), callee.params[i], args.get(i));
+        }
+        if (callee.isMutable && !funcDef.isMutable()) {
+            throw error("Can't call mutable function " + name + " from immutable function " + funcDef.getName(),
+                    call);
+        }
+        return callee;
+    }
+
+    /** Implicit conversions are only to the same type or up to Q. */
+    private static void expect(Type type, Type expected, ASTNode node) {
+        if (type != expected && expected != Type.Q) {
+            throw error("Cannot convert between types " + name(type) + " and " + name(expected), node);
+        }
+    }
+
+    private void declare(VarDecl varDecl) {
+        for (Map<String, VarDecl> scope : scopes) {
+            if (scope.containsKey(varDecl.getName())) {
+                throw error("Variable " + varDecl.getName() + " already exists", varDecl);
+            }
+        }
+        scopes.get(scopes.size() - 1).put(varDecl.getName(), varDecl);
+    }
+
+    private VarDecl lookup(String name, ASTNode use) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            VarDecl decl = scopes.get(i).get(name);
+            if (decl != null) {
+                return decl;
+            }
+        }
+        throw error("Variable " + name + " used without declaration", use);
+    }
+
+    private void pushScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void popScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private static String name(Type type) {
+        switch (type) {
+            case INT:
+                return "int";
+            case REF:
+                return "Ref";
+            default:
+                return "Q";
+        }
+    }
+
+    private static StaticCheckingError error(String message, ASTNode node) {
+        return new StaticCheckingError(message + " at " + node.getLocation());
+    }
+}
@@ -5,6 +5,7 @@ public class VarDecl extends Stmt {
     private final Type type;
     private final Expr initExpr;
     private final boolean isMutable;
+    int slot = -1;
 
     public VarDecl(String name, Type type, Expr initExpr, boolean isMutable, Location loc) {
         super(loc);
@@ -29,4 +30,8 @@ public class VarDecl extends Stmt {
     public boolean isMutable() {
         return isMutable;
     }
+
+    public int getSlot() {
+        return slot;
+    }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package ast;
 
 public class VarExpr extends Expr {
     private final String name;
+    VarDecl decl;
 
     public VarExpr(String name, Location loc) {
         super(loc);
@@ -11,4 +12,12 @@ public class VarExpr extends Expr {
     public String getName() {
         return name;
     }
+
+    public VarDecl getDecl() {
+        return decl;
+    }
+
+    public int getSlot() {
+        return decl != null ? decl.getSlot() : -1;
+    }
 }
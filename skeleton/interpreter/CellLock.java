@@ -0,0 +1,130 @@
+package interpreter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * The inflated lock behind acq() and rel() on one cell. A cell's lock
+ * starts out thin, as the owner field of its header; it is inflated to
+ * one of these only when a second thread contends for it or its owner
+ * acquires it again.
+ *
+ * Waiters queue in FIFO order. A thread first spins for a while, in case
+ * the holder is about to release, and then parks. rel() hands the lock
+ * straight to the first waiter and unparks only that thread, so a
+ * released lock cannot be barged and no waiter wakes up for nothing.
+ * Parking goes through LockSupport, so a waiting virtual thread does not
+ * pin its carrier.
+ */
+final class CellLock {
+    /** How often to retry a held lock before parking; spinning is pointless on one CPU. */
+    static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        final long owner;
+        volatile boolean granted;
+
+        Waiter(long owner) {
+            this.owner = owner;
+        }
+    }
+
+    private final ReentrantLock guard = new ReentrantLock();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    // Lock owner id of the holding thread, or 0 when free; never 0 while
+    // there are waiters, because release() hands the lock over
+    private volatile long owner;
+    private int holds;
+
+    /**
+     * Runs the header CAS that inflates the thin lock and takes over the
+     * owner it returns. The CAS runs under the guard, so an owner that
+     * sees the cell inflated and releases here waits until it is done.
+     */
+    void inflate(LongSupplier takeOver) {
+        guard.lock();
+        try {
+            long thinOwner = takeOver.getAsLong();
+            if (thinOwner != 0) {
+                owner = thinOwner;
+                holds = 1;
+            }
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /** Takes the lock if it is free or already ours, without waiting. */
+    boolean tryAcquire(long self) {
+        guard.lock();
+        try {
+            if (owner != 0 && owner != self) {
+                return false;
+            }
+            owner = self;
+            holds++;
+            return true;
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /** Takes the lock, spinning briefly and then parking until it is handed to us. */
+    void acquire(long self) {
+        for (int spin = 0; spin < SPINS; spin++) {
+            if (owner == 0 && tryAcquire(self)) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        Waiter waiter;
+        guard.lock();
+        try {
+            if (owner == 0 || owner == self) {
+                owner = self;
+                holds++;
+                return;
+            }
+            waiter = new Waiter(self);
+            waiters.add(waiter);
+        } finally {
+            guard.unlock();
+        }
+        boolean interrupted = false;
+        while (!waiter.granted) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean release(long self) {
+        guard.lock();
+        try {
+            if (owner != self) {
+                return false;
+            }
+            if (--holds == 0) {
+                Waiter next = waiters.poll();
+                if (next == null) {
+                    owner = 0;
+                } else {
+                    owner = next.owner;
+                    holds = 1;
+                    next.granted = true;
+                    LockSupport.unpark(next.thread);
+                }
+            }
+            return true;
+        } finally {
+            guard.unlock();
+        }
+    }
+}
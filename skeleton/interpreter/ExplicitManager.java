@@ -0,0 +1,53 @@
+package interpreter;
+
+/**
+ * Leaves reclamation to the program: free() pushes a cell onto a free list
+ * and allocation pops from it before bumping the pointer, both in constant
+ * time and without ever pausing the program. Every cell has the same size,
+ * so a single list serves all allocations. Free cells are linked through
+ * their left field and keep the FREED header bit until they are reused,
+ * which makes loads and stores of them fail. A second free() of a cell
+ * returns normally, as in the reference, but leaves the list alone, so
+ * that two later allocations never share the cell.
+ */
+final class ExplicitManager extends MemoryManager {
+
+    private long top = HEAP_START;
+    private long freeList;
+
+    ExplicitManager(long heapBytes) {
+        super(heapBytes);
+    }
+
+    @Override
+    long allocate(Object left, Object right) {
+        long cell = take();
+        if (cell == 0) {
+            outOfMemory();
+        }
+        initCell(cell, left, right);
+        return cell;
+    }
+
+    private synchronized long take() {
+        long cell = freeList;
+        if (cell != 0) {
+            freeList = memory.load(fieldAddress(cell, LEFT));
+        } else if (top + CELL_BYTES <= memory.getEndAddr()) {
+            cell = top;
+            top += CELL_BYTES;
+        }
+        return cell;
+    }
+
+    @Override
+    synchronized void free(long cell) {
+        if ((memory.load(cell) & FREED) != 0) {
+            return;
+        }
+        dropLock(cell);
+        memory.store(cell, FREED);
+        memory.store(fieldAddress(cell, LEFT), freeList);
+        freeList = cell;
+    }
+}
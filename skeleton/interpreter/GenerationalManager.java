@@ -0,0 +1,242 @@
+package interpreter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the heap into a nursery, the first quarter, and an old space.
+ * New cells are bumped out of the nursery. When it fills, the world is
+ * stopped and the cells reachable from the roots and from the remembered
+ * set are copied into the old space, Cheney style: each copied cell is
+ * queued and scanned once, and every Ref it holds into the nursery is
+ * copied in turn. The nursery is then empty again.
+ *
+ * An evacuated cell is left with the FORWARDED header bit and its new
+ * address in the left field. Root handles are updated in place, so every
+ * value held outside the heap across an allocation must be registered.
+ *
+ * Old cells pointing into the nursery are recorded by the write barrier
+ * in store(). The old space itself is mark-swept, with both spaces traced,
+ * only when it might not have room for the nursery's survivors.
+ */
+final class GenerationalManager extends MemoryManager {
+
+    private static final long MARK = MarkSweepManager.MARK;
+    static final long FORWARDED = 1L << 6;
+    static final long REMEMBERED = 1L << 7;
+
+    private final long nurseryEnd;
+    private final AtomicLong nurseryTop = new AtomicLong(HEAP_START);
+    private long oldTop;
+    private long oldFreeList;
+    private long oldFreeCells;
+    private long[] remembered = new long[64];
+    private int rememberedCount;
+    // Cells still to scan: copies during a nursery collection, grey cells while marking
+    private long[] work = new long[256];
+    private int workCount;
+    private boolean exhausted;
+
+    GenerationalManager(long heapBytes) {
+        super(heapBytes);
+        long cells = heapBytes / CELL_BYTES;
+        this.nurseryEnd = HEAP_START + Math.min(cells, Math.max(1, cells / 4)) * CELL_BYTES;
+        this.oldTop = nurseryEnd;
+    }
+
+    @Override
+    long allocate(Object left, Object right) {
+        long cell = nurseryTop.getAndAdd(CELL_BYTES);
+        boolean collected = false;
+        // If another thread collected meanwhile, the nursery it emptied may
+        // already be full again; only our own failed collection is fatal.
+        while (cell + CELL_BYTES > nurseryEnd && !collected) {
+            collected = collect(left, right);
+            cell = nurseryTop.getAndAdd(CELL_BYTES);
+        }
+        if (cell + CELL_BYTES > nurseryEnd) {
+            outOfMemory();
+        }
+        initCell(cell, left, right);
+        return cell;
+    }
+
+    @Override
+    void store(long cell, int field, Object value) {
+        super.store(cell, field, value);
+        if (value instanceof HeapObject && inNursery(((HeapObject) value).address) && !inNursery(cell)) {
+            remember(cell);
+        }
+    }
+
+    private boolean inNursery(long cell) {
+        return cell < nurseryEnd;
+    }
+
+    private synchronized void remember(long cell) {
+        while (true) {
+            long header = memory.load(cell);
+            if ((header & REMEMBERED) != 0) {
+                return;
+            }
+            if (memory.atomicCompareAndSet(cell, header, header | REMEMBERED)) {
+                break;
+            }
+        }
+        if (rememberedCount == remembered.length) {
+            remembered = Arrays.copyOf(remembered, rememberedCount * 2);
+        }
+        remembered[rememberedCount++] = cell;
+    }
+
+    private boolean collect(Object left, Object right) {
+        // The values of the cell being allocated are live but not yet stored
+        ThreadContext context = ThreadContext.current();
+        context.push(left);
+        context.push(right);
+        boolean collected = ThreadContext.stopTheWorld(this::collectNursery);
+        context.pop();
+        context.pop();
+        if (exhausted) {
+            outOfMemory();
+        }
+        return collected;
+    }
+
+    private synchronized void collectNursery() {
+        long survivors = (Math.min(nurseryTop.get(), nurseryEnd) - HEAP_START) / CELL_BYTES;
+        if (oldFree() < survivors) {
+            survivors = collectOld();
+        }
+        exhausted = oldFree() < survivors;
+        if (exhausted) {
+            return;
+        }
+        forEachRootHandle(handle -> {
+            if (inNursery(handle.address)) {
+                handle.address = forward(handle.address);
+            }
+        });
+        for (int i = 0; i < rememberedCount; i++) {
+            long cell = remembered[i];
+            memory.store(cell, memory.load(cell) & ~REMEMBERED);
+            scan(cell);
+        }
+        rememberedCount = 0;
+        while (workCount > 0) {
+            scan(work[--workCount]);
+        }
+        // Locks of evacuated cells have moved; the rest belong to dead cells
+        dropLocks(HEAP_START, nurseryEnd);
+        nurseryTop.set(HEAP_START);
+    }
+
+    /** Returns the new address of a nursery cell, copying it on the first visit. */
+    private long forward(long cell) {
+        long header = memory.load(cell);
+        if ((header & FORWARDED) != 0) {
+            return memory.load(fieldAddress(cell, LEFT));
+        }
+        long copy = takeOld();
+        memory.store(fieldAddress(copy, LEFT), memory.load(fieldAddress(cell, LEFT)));
+        memory.store(fieldAddress(copy, RIGHT), memory.load(fieldAddress(cell, RIGHT)));
+        memory.store(copy, header & (TAGS_MASK | LOCK_MASK));
+        memory.store(cell, FORWARDED);
+        memory.store(fieldAddress(cell, LEFT), copy);
+        moveLock(cell, copy);
+        push(copy);
+        return copy;
+    }
+
+    private void push(long cell) {
+        if (workCount == work.length) {
+            work = Arrays.copyOf(work, workCount * 2);
+        }
+        work[workCount++] = cell;
+    }
+
+    /** Evacuates the nursery cells an old cell points to. */
+    private void scan(long cell) {
+        long header = memory.load(cell);
+        for (int field = LEFT; field <= RIGHT; field++) {
+            long address = fieldAddress(cell, field);
+            if (((header >>> (2 * field)) & TAG_MASK) == TAG_REF && inNursery(memory.load(address))) {
+                memory.store(address, forward(memory.load(address)));
+            }
+        }
+    }
+
+    private long oldFree() {
+        return (memory.getEndAddr() - oldTop) / CELL_BYTES + oldFreeCells;
+    }
+
+    private long takeOld() {
+        long cell = oldFreeList;
+        if (cell != 0) {
+            oldFreeList = memory.load(fieldAddress(cell, LEFT));
+            oldFreeCells--;
+        } else {
+            cell = oldTop;
+            oldTop += CELL_BYTES;
+        }
+        return cell;
+    }
+
+    /**
+     * Marks both spaces from the roots and sweeps the old space. Returns
+     * how many nursery cells are live, which the old space must then hold.
+     */
+    private long collectOld() {
+        forEachRoot(this::push);
+        while (workCount > 0) {
+            long cell = work[--workCount];
+            long header = memory.load(cell);
+            if ((header & MARK) != 0) {
+                continue;
+            }
+            memory.store(cell, header | MARK);
+            for (int field = LEFT; field <= RIGHT; field++) {
+                if (((header >>> (2 * field)) & TAG_MASK) == TAG_REF) {
+                    push(memory.load(fieldAddress(cell, field)));
+                }
+            }
+        }
+
+        long free = 0;
+        long freeCells = 0;
+        for (long cell = oldTop - CELL_BYTES; cell >= nurseryEnd; cell -= CELL_BYTES) {
+            long header = memory.load(cell);
+            if ((header & MARK) != 0) {
+                memory.store(cell, header & ~MARK);
+            } else {
+                dropLock(cell);
+                memory.store(cell, 0);
+                memory.store(fieldAddress(cell, LEFT), free);
+                free = cell;
+                freeCells++;
+            }
+        }
+        oldFreeList = free;
+        oldFreeCells = freeCells;
+
+        // Swept cells lost their REMEMBERED bit and must not be scanned
+        int kept = 0;
+        for (int i = 0; i < rememberedCount; i++) {
+            if ((memory.load(remembered[i]) & REMEMBERED) != 0) {
+                remembered[kept++] = remembered[i];
+            }
+        }
+        rememberedCount = kept;
+
+        long live = 0;
+        long top = Math.min(nurseryTop.get(), nurseryEnd);
+        for (long cell = HEAP_START; cell < top; cell += CELL_BYTES) {
+            long header = memory.load(cell);
+            if ((header & MARK) != 0) {
+                memory.store(cell, header & ~MARK);
+                live++;
+            }
+        }
+        return live;
+    }
+}
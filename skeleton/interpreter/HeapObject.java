@@ -1,70 +1,61 @@
 package interpreter;
 
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.TimeUnit;
+/**
+ * A Ref value: the address of a cell in the Quandary heap. Handles are
+ * created freely and compare equal when they name the same cell. A moving
+ * collector updates the address of every handle registered as a root.
+ */
+public final class HeapObject {
+    long address;
 
-public class HeapObject {
-    private Object left;
-    private Object right;
-    private static long nextId = 1;
-    private final long id;
-    private final Lock lock = new ReentrantLock(true);
-    private volatile Thread lockHolder = null;
-    private static final long LOCK_TIMEOUT_MS = 50;
+    HeapObject(long address) {
+        this.address = address;
+    }
 
     public HeapObject(Object left, Object right) {
-        this.left = left;
-        this.right = right;
-        this.id = nextId++;
+        this(Interpreter.getInterpreter().memoryManager.allocate(left, right));
     }
 
-    public boolean tryAcquireLock() {
-        try {
-            if (lock.tryLock(LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
-                lockHolder = Thread.currentThread();
-                return true;
-            }
-            return false;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return false;
-        }
+    private static MemoryManager memory() {
+        return Interpreter.getInterpreter().memoryManager;
     }
 
     public boolean releaseLock() {
-        if (lockHolder == Thread.currentThread()) {
-            try {
-                lockHolder = null;
-                lock.unlock();
-                return true;
-            } catch (IllegalMonitorStateException e) {
-                return false;
-            }
-        }
-        return false;
+        return memory().unlock(address, ThreadContext.current());
     }
 
     public Object getLeft() {
-        return left;
+        return memory().load(address, MemoryManager.LEFT);
     }
 
     public Object getRight() {
-        return right;
+        return memory().load(address, MemoryManager.RIGHT);
     }
 
     public void setLeft(Object value) {
-        this.left = value;
+        memory().store(address, MemoryManager.LEFT, value);
     }
 
     public void setRight(Object value) {
-        this.right = value;
+        memory().store(address, MemoryManager.RIGHT, value);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof HeapObject && ((HeapObject) other).address == address;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(address);
     }
 
     @Override
     public String toString() {
+        Object left = getLeft();
+        Object right = getRight();
         String leftStr = left == null ? "nil" : left.toString();
         String rightStr = right == null ? "nil" : right.toString();
         return "(" + leftStr + " . " + rightStr + ")";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+package interpreter;
+
+import java.util.Arrays;
+
+/**
+ * A mark-sweep collector whose marking and sweeping run in small slices
+ * on the allocation path instead of in one stop-the-world pause.
+ *
+ * A cycle starts when a quarter of the heap is left. The world is stopped
+ * only to grey the roots; after that every allocation traces MARK_SLICE
+ * grey cells or sweeps SWEEP_SLICE cells. Marking preserves the snapshot
+ * taken at the start of the cycle: while it runs, setLeft and setRight
+ * grey the Ref they overwrite, and new cells are allocated marked. A cell
+ * reachable at the snapshot or allocated since is therefore never swept.
+ *
+ * If the heap runs out before a cycle completes, the world is stopped for
+ * a full collection from the current roots, exactly as MarkSweep would.
+ */
+final class IncrementalManager extends MemoryManager {
+
+    private static final long MARK = MarkSweepManager.MARK;
+
+    private static final int MARK_SLICE = 64;
+    private static final int SWEEP_SLICE = 128;
+
+    private static final int IDLE = 0;
+    private static final int MARKING = 1;
+    private static final int SWEEPING = 2;
+
+    // Read without the lock by the write barrier; only changes when the world is stopped or under the lock
+    private volatile int phase = IDLE;
+
+    private final long startThreshold;
+    private long top = HEAP_START;
+    private long freeList;
+    private long freeCells;
+    private long[] greyStack = new long[256];
+    private int greyDepth;
+    private long sweepCursor;
+    private long sweepLimit;
+
+    IncrementalManager(long heapBytes) {
+        super(heapBytes);
+        this.startThreshold = Math.max(1, heapBytes / CELL_BYTES / 4);
+    }
+
+    @Override
+    long allocate(Object left, Object right) {
+        if (phase == IDLE && available() <= startThreshold) {
+            startCycle(left, right);
+        }
+        long cell = allocateCell(left, right);
+        boolean collected = false;
+        // If another thread collected meanwhile, its sweep may not have left
+        // a cell for us; only our own empty collection means out of memory.
+        while (cell == 0 && !collected) {
+            collected = collectFully(left, right);
+            cell = allocateCell(left, right);
+        }
+        if (cell == 0) {
+            outOfMemory();
+        }
+        return cell;
+    }
+
+    @Override
+    void store(long cell, int field, Object value) {
+        if (phase != MARKING) {
+            super.store(cell, field, value);
+            return;
+        }
+        synchronized (this) {
+            if (phase == MARKING) {
+                // Snapshot barrier: the overwritten Ref may be the last path to a cell live at the snapshot
+                long header = memory.load(cell);
+                if (((header >>> (2 * field)) & TAG_MASK) == TAG_REF) {
+                    shade(memory.load(fieldAddress(cell, field)));
+                }
+            }
+            super.store(cell, field, value);
+        }
+    }
+
+    private synchronized long available() {
+        return (memory.getEndAddr() - top) / CELL_BYTES + freeCells;
+    }
+
+    /** Does one slice of collection work, then takes and initializes a cell. */
+    private synchronized long allocateCell(Object left, Object right) {
+        if (phase == MARKING) {
+            markSlice();
+        } else if (phase == SWEEPING) {
+            sweepSlice();
+        }
+        long cell = freeList;
+        if (cell != 0) {
+            freeList = memory.load(fieldAddress(cell, LEFT));
+            freeCells--;
+        } else if (top + CELL_BYTES <= memory.getEndAddr()) {
+            cell = top;
+            top += CELL_BYTES;
+        } else {
+            return 0;
+        }
+        initCell(cell, left, right);
+        if (phase == MARKING) {
+            memory.store(cell, memory.load(cell) | MARK);
+        }
+        return cell;
+    }
+
+    private void startCycle(Object left, Object right) {
+        ThreadContext context = ThreadContext.current();
+        context.push(left);
+        context.push(right);
+        ThreadContext.stopTheWorld(this::greyRoots);
+        context.pop();
+        context.pop();
+    }
+
+    private synchronized void greyRoots() {
+        if (phase != IDLE) {
+            return;
+        }
+        forEachRoot(this::shade);
+        phase = MARKING;
+    }
+
+    private boolean collectFully(Object left, Object right) {
+        ThreadContext context = ThreadContext.current();
+        context.push(left);
+        context.push(right);
+        boolean collected = ThreadContext.stopTheWorld(this::fullCollection);
+        context.pop();
+        context.pop();
+        return collected;
+    }
+
+    private synchronized void fullCollection() {
+        // Drop the cycle in progress; its snapshot may keep cells that are dead by now
+        for (long cell = HEAP_START; cell < top; cell += CELL_BYTES) {
+            memory.store(cell, memory.load(cell) & ~MARK);
+        }
+        greyDepth = 0;
+        forEachRoot(this::shade);
+        markSlice(Integer.MAX_VALUE);
+        startSweep();
+        sweepSlice(Long.MAX_VALUE);
+    }
+
+    private void shade(long cell) {
+        long header = memory.load(cell);
+        // Mutators may be taking the cell's thin lock, so set the mark with a CAS
+        while ((header & MARK) == 0 && !memory.atomicCompareAndSet(cell, header, header | MARK)) {
+            header = memory.load(cell);
+        }
+        if ((header & MARK) == 0) {
+            if (greyDepth == greyStack.length) {
+                greyStack = Arrays.copyOf(greyStack, greyDepth * 2);
+            }
+            greyStack[greyDepth++] = cell;
+        }
+    }
+
+    private void markSlice() {
+        markSlice(MARK_SLICE);
+        if (greyDepth == 0) {
+            startSweep();
+        }
+    }
+
+    private void markSlice(int budget) {
+        while (greyDepth > 0 && budget-- > 0) {
+            long cell = greyStack[--greyDepth];
+            long header = memory.load(cell);
+            for (int field = LEFT; field <= RIGHT; field++) {
+                if (((header >>> (2 * field)) & TAG_MASK) == TAG_REF) {
+                    shade(memory.load(fieldAddress(cell, field)));
+                }
+            }
+        }
+    }
+
+    private void startSweep() {
+        // Every free cell is unmarked, so the sweep finds them all again
+        freeList = 0;
+        freeCells = 0;
+        sweepCursor = HEAP_START;
+        sweepLimit = top;
+        phase = SWEEPING;
+    }
+
+    private void sweepSlice() {
+        sweepSlice(SWEEP_SLICE);
+    }
+
+    private void sweepSlice(long budget) {
+        while (sweepCursor < sweepLimit && budget-- > 0) {
+            long cell = sweepCursor;
+            sweepCursor += CELL_BYTES;
+            long header = memory.load(cell);
+            if ((header & MARK) != 0) {
+                // Mutators may be updating the tags, so clear the mark with a CAS
+                while (!memory.atomicCompareAndSet(cell, header, header & ~MARK)) {
+                    header = memory.load(cell);
+                }
+            } else {
+                dropLock(cell);
+                memory.store(cell, 0);
+                memory.store(fieldAddress(cell, LEFT), freeList);
+                freeList = cell;
+                freeCells++;
+            }
+        }
+        if (sweepCursor >= sweepLimit) {
+            phase = IDLE;
+        }
+    }
+}
@@ -1,9 +1,28 @@
 package interpreter;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import parser.ParserWrapper;
 import ast.*;
+import nodes.FunctionNode;
+import nodes.Lowering;
+import vm.CompiledProgram;
+import vm.Compiler;
+import vm.VM;
 
 public class Interpreter {
     public static final int EXIT_SUCCESS = 0;
@@ -14,64 +33,145 @@ public class Interpreter {
     public static final int EXIT_QUANDARY_HEAP_OUT_OF_MEMORY_ERROR = 5;
 
     static private Interpreter interpreter;
-    private final ThreadLocal<Stack<Map<String, Object>>> threadLocalEnvStack = new ThreadLocal<>();
+
+    // Runs the sides of serial expressions that the Parallelizer marked.
+    // The maximum size is large so that workers waiting on a stolen side
+    // can be compensated.
+    private static final ForkJoinPool EVALUATORS = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false, 0, 0x7fff, 1, null, 60, TimeUnit.SECONDS);
+
+    // Runs the right sides of ConcurrentExprs, each on a thread of its own:
+    // the sides may wait on each other, so none may queue behind another
+    // thread's work. Threads idle after a side are reused for later ones.
+    private static final ExecutorService SIDES = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // How many right sides of ConcurrentExprs are running on their own threads
+    private static final AtomicInteger runningSides = new AtomicInteger();
+
+    /**
+     * Set by -seqcutoff: while more right sides than this are running on
+     * their own threads, a ConcurrentExpr evaluates both of its sides in
+     * order on the calling thread. Only safe for programs whose concurrent
+     * sides never wait on each other.
+     */
+    private static int sequentialCutoff = Integer.MAX_VALUE;
+
+    /** Set by -threads Virtual: right sides of ConcurrentExprs run on new virtual threads instead of SIDES. */
+    private static ThreadFactory virtualThreads;
+
+    /** Set by -lockprofile: acq() and rel() are recorded and reported after the result. */
+    private static boolean profileLocks;
+
+    /**
+     * How many queued tasks a worker may have before it evaluates both
+     * sides of an expression marked by the Parallelizer itself. A few
+     * queued tasks keep idle workers busy; more only add forking overhead.
+     */
+    private static final int PARALLEL_CUTOFF = 2;
+
+    /** Set by -memosize: how many results of pure functions are memoized; 0, the default, turns memoization off. */
+    private static int memoSize = 0;
 
     public static Interpreter getInterpreter() {
         return interpreter;
     }
 
-    private static class EvalResult {
+    private static class EvalResult implements RootSet {
         Object value;
         RuntimeException error;
+
+        @Override
+        public Object[] roots() {
+            return new Object[] { value };
+        }
     }
 
-    private static class EvalThread extends Thread {
-        private final Expr expr;
-        private final Map<String, Object> env;
-        private final EvalResult result;
-        private final Stack<Map<String, Object>> threadEnvStack;
-
-        public EvalThread(Expr expr, Map<String, Object> env, EvalResult result,
-                Stack<Map<String, Object>> parentEnvStack) {
-            this.expr = expr;
-            this.env = env;
-            this.result = result;
-            this.threadEnvStack = new Stack<>();
-            for (Map<String, Object> map : parentEnvStack) {
-                this.threadEnvStack.push(new HashMap<>(map));
-            }
+    /**
+     * One side of a ConcurrentExpr, or of a serial expression that the
+     * Parallelizer marked. compute() runs it as a mutator of its own.
+     */
+    private static class EvalTask extends RecursiveAction implements ForkJoinPool.ManagedBlocker {
+        private static final long serialVersionUID = 1L;
+
+        private final Supplier<Object> body;
+        final EvalResult result = new EvalResult();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        EvalTask(Supplier<Object> body) {
+            this.body = body;
         }
 
-        @Override
-        public void run() {
+        void evaluate() {
             try {
-                Interpreter interpreter = Interpreter.getInterpreter();
-                interpreter.pushThreadLocalEnvStack(threadEnvStack);
-                result.value = interpreter.evaluate(expr, env);
+                result.value = body.get();
             } catch (RuntimeException e) {
                 result.error = e;
+            }
+        }
+
+        @Override
+        protected void compute() {
+            ThreadContext context = ThreadContext.attach();
+            try {
+                evaluate();
             } finally {
-                Interpreter.getInterpreter().popThreadLocalEnvStack();
+                Interpreter.getInterpreter().memoryManager.retire(context);
+                ThreadContext.detach();
+                done.countDown();
             }
         }
-    }
 
-    private void pushThreadLocalEnvStack(Stack<Map<String, Object>> stack) {
-        threadLocalEnvStack.set(stack);
-    }
+        @Override
+        public boolean block() throws InterruptedException {
+            done.await();
+            return true;
+        }
 
-    private void popThreadLocalEnvStack() {
-        threadLocalEnvStack.remove();
+        @Override
+        public boolean isReleasable() {
+            return done.getCount() == 0;
+        }
     }
 
-    private Stack<Map<String, Object>> getCurrentEnvStack() {
-        Stack<Map<String, Object>> stack = threadLocalEnvStack.get();
-        return stack != null ? stack : envStack;
+    /** Waits for a lock in acq() so that the pool can compensate for a blocked worker. */
+    private static class LockWaiter implements ForkJoinPool.ManagedBlocker {
+        private final CellLock lock;
+        private final long owner;
+        private boolean acquired;
+        // Whether the lock was held when we got here, so that we had to wait
+        boolean blocked;
+
+        LockWaiter(CellLock lock, long owner) {
+            this.lock = lock;
+            this.owner = owner;
+        }
+
+        @Override
+        public boolean block() {
+            blocked = true;
+            lock.acquire(owner);
+            acquired = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return acquired || (acquired = lock.tryAcquire(owner));
+        }
     }
 
     public static void main(String[] args) {
-        String gcType = "NoGC";
+        String gcType = "MarkSweep";
+        String engine = "Tree";
         long heapBytes = 1 << 14;
+        int optLevel = 1;
+        boolean autoParallel = false;
+        boolean noCache = false;
         int i = 0;
         String filename;
         long quandaryArg;
@@ -81,10 +181,52 @@ public class Interpreter {
                 if (arg.startsWith("-")) {
                     if (arg.equals("-gc")) {
                         gcType = args[i + 1];
+                        if (!gcType.equals("MarkSweep") && !gcType.equals("Incremental") && !gcType.equals("Generational")
+                                && !gcType.equals("Explicit") && !gcType.equals("NoGC")) {
+                            throw new RuntimeException("Unknown collector " + gcType);
+                        }
                         i++;
                     } else if (arg.equals("-heapsize")) {
                         heapBytes = Long.valueOf(args[i + 1]);
                         i++;
+                    } else if (arg.equals("-heapmemory")) {
+                        RawMemory.backing = args[i + 1];
+                        if (!RawMemory.backing.equals("Array") && !RawMemory.backing.equals("Direct")
+                                && !RawMemory.backing.equals("Mapped")) {
+                            throw new RuntimeException("Unknown heap memory " + RawMemory.backing);
+                        }
+                        i++;
+                    } else if (arg.equals("-heapfile")) {
+                        RawMemory.mappedFile = java.nio.file.Paths.get(args[i + 1]);
+                        i++;
+                    } else if (arg.equals("-threads")) {
+                        String threads = args[i + 1];
+                        if (threads.equals("Virtual")) {
+                            virtualThreads = virtualThreadFactory();
+                        } else if (!threads.equals("Pool")) {
+                            throw new RuntimeException("Unknown threads " + threads);
+                        }
+                        i++;
+                    } else if (arg.equals("-seqcutoff")) {
+                        sequentialCutoff = Integer.valueOf(args[i + 1]);
+                        i++;
+                    } else if (arg.equals("-lockprofile")) {
+                        profileLocks = true;
+                    } else if (arg.equals("-autopar")) {
+                        autoParallel = true;
+                    } else if (arg.equals("-nocache")) {
+                        noCache = true;
+                    } else if (arg.equals("-memosize")) {
+                        memoSize = Integer.valueOf(args[i + 1]);
+                        i++;
+                    } else if (arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2")) {
+                        optLevel = arg.charAt(2) - '0';
+                    } else if (arg.equals("-engine")) {
+                        engine = args[i + 1];
+                        if (!engine.equals("Tree") && !engine.equals("VM") && !engine.equals("JIT")) {
+                            throw new RuntimeException("Unknown engine " + engine);
+                        }
+                        i++;
                     } else {
                         throw new RuntimeException("Unexpected option " + arg);
                     }
@@ -100,32 +242,79 @@ public class Interpreter {
         } catch (Exception ex) {
             System.out.println("Expected format: quandary [OPTIONS] QUANDARY_PROGRAM_FILE INTEGER_ARGUMENT");
             System.out.println("Options:");
-            System.out.println("  -gc (MarkSweep|Explicit|NoGC)");
+            System.out.println("  -gc (MarkSweep|Incremental|Generational|Explicit|NoGC)");
             System.out.println("  -heapsize BYTES");
+            System.out.println("  -heapmemory (Array|Direct|Mapped)");
+            System.out.println("  -heapfile FILE");
+            System.out.println("  -engine (Tree|VM|JIT)");
+            System.out.println("  -threads (Pool|Virtual)");
+            System.out.println("  -seqcutoff RUNNING_SIDES");
+            System.out.println("  -lockprofile");
+            System.out.println("  -O(0|1|2)");
+            System.out.println("  -memosize ENTRIES");
+            System.out.println("  -autopar");
+            System.out.println("  -nocache");
             System.out.println("BYTES must be a multiple of the word size (8)");
             return;
         }
 
-        Program astRoot = null;
-        Reader reader;
+        Path sourcePath = Paths.get(filename);
+        Path cachePath = ProgramCache.pathFor(sourcePath);
+        byte[] source;
         try {
-            reader = new BufferedReader(new FileReader(filename));
+            source = Files.readAllBytes(sourcePath);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        Program astRoot = noCache ? null : ProgramCache.load(cachePath, source);
+        if (astRoot == null) {
+            Reader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(source)));
+            try {
+                astRoot = ParserWrapper.parse(reader);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                Interpreter.fatalError("Uncaught parsing error: " + ex, Interpreter.EXIT_PARSING_ERROR);
+            }
+            if (!noCache) {
+                ProgramCache.store(cachePath, source, astRoot);
+            }
+        }
+        Resolver.resolve(astRoot);
         try {
-            astRoot = ParserWrapper.parse(reader);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            Interpreter.fatalError("Uncaught parsing error: " + ex, Interpreter.EXIT_PARSING_ERROR);
+            StaticChecker.check(astRoot);
+        } catch (StaticChecker.StaticCheckingError ex) {
+            Interpreter.fatalError("Static checking error: " + ex.getMessage(),
+                    Interpreter.EXIT_STATIC_CHECKING_ERROR);
+        }
+        if (optLevel > 0) {
+            astRoot = Optimizer.optimize(astRoot, optLevel);
+            Resolver.resolve(astRoot);
+        }
+        PurityAnalysis.analyze(astRoot);
+        if (autoParallel) {
+            Parallelizer.mark(astRoot);
         }
 
-        interpreter = new Interpreter(astRoot);
+        interpreter = new Interpreter(astRoot, engine);
         interpreter.initMemoryManager(gcType, heapBytes);
         Object returnValue = interpreter.executeRoot(astRoot, quandaryArg);
         System.out.println("Interpreter returned " + formatValue(returnValue));
     }
 
+    /**
+     * Returns Thread.ofVirtual().factory(). It is looked up reflectively so
+     * that the interpreter still builds and runs on JDKs before 21.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("-threads Virtual needs Java 21 or later");
+            throw new RuntimeException(e);
+        }
+    }
+
     private static String formatValue(Object value) {
         if (value == null) {
             return "nil";
@@ -138,374 +327,338 @@ public class Interpreter {
 
     final Program astRoot;
     final Random random;
-    private final Map<String, FuncDef> functions = new HashMap<>();
-    private final Stack<Map<String, Object>> envStack = new Stack<>();
-    private final Map<String, Boolean> mutableVars = new HashMap<>();
+    private final Map<String, FunctionNode> functions;
+    private final CompiledProgram compiledProgram;
+    private final MemoCache memoCache;
+    MemoryManager memoryManager;
 
-    private Interpreter(Program astRoot) {
+    private Interpreter(Program astRoot, String engine) {
         this.astRoot = astRoot;
         this.random = new Random();
-        for (FuncDef funcDef : astRoot.getFuncDefList()) {
-            functions.put(funcDef.getName(), funcDef);
-        }
+        this.memoCache = memoSize > 0 ? new MemoCache(memoSize) : null;
+        this.functions = Lowering.lower(astRoot);
+        this.compiledProgram = engine.equals("Tree") ? null : Compiler.compile(astRoot, engine.equals("JIT"));
     }
 
     void initMemoryManager(String gcType, long heapBytes) {
-        if (gcType.equals("Explicit") || gcType.equals("MarkSweep")) {
-            throw new RuntimeException(gcType + " not implemented");
+        if (gcType.equals("MarkSweep")) {
+            memoryManager = new MarkSweepManager(heapBytes);
+            ThreadContext.tracing = true;
+        } else if (gcType.equals("Incremental")) {
+            memoryManager = new IncrementalManager(heapBytes);
+            ThreadContext.tracing = true;
+        } else if (gcType.equals("Generational")) {
+            memoryManager = new GenerationalManager(heapBytes);
+            ThreadContext.tracing = true;
+        } else if (gcType.equals("Explicit")) {
+            memoryManager = new ExplicitManager(heapBytes);
+        } else {
+            memoryManager = new NoGCManager(heapBytes);
+        }
+        if (profileLocks) {
+            LockProfiler profiler = new LockProfiler();
+            memoryManager.lockProfiler = profiler;
+            // Runs however the process ends: returning, fatalError(), or killed while deadlocked
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                profiler.report(System.out);
+                System.out.flush();
+            }));
         }
     }
 
     Object executeRoot(Program astRoot, long arg) {
-        FuncDef mainFunc = functions.get("main");
+        ThreadContext.attach();
+        if (compiledProgram != null) {
+            return VM.runMain(compiledProgram, arg);
+        }
+        FunctionNode mainFunc = functions.get("main");
         if (mainFunc == null) {
             throw new RuntimeException("Main function not found");
         }
-        return executeFunction(mainFunc, Collections.singletonList(arg));
+        return mainFunc.call(Collections.singletonList(arg));
     }
 
-    private Object executeFunction(FuncDef funcDef, List<Object> args) {
-        Map<String, Object> localVars = new HashMap<>();
-        List<VarDecl> params = funcDef.getParams();
+    public FunctionNode getFunction(String name) {
+        return functions.get(name);
+    }
+
+    /** Returns the cache of memoizable functions' results, or null if memoization is off. */
+    public MemoCache getMemoCache() {
+        return memoCache;
+    }
 
-        if (params.size() != args.size()) {
-            throw new RuntimeException("Incorrect number of arguments for function: " + funcDef.getName());
+    /**
+     * Evaluates the two sides of a ConcurrentExpr as two threads. The right
+     * side runs on a SIDES thread, or a new virtual thread, so it never
+     * waits for a worker to come free. The left side runs on the calling
+     * thread with a ThreadContext of its own, and so its own lock owner;
+     * the caller's context counts as blocked until both sides are done.
+     */
+    public Object[] evaluateConcurrent(Supplier<Object> left, Supplier<Object> right) {
+        if (runningSides.get() > sequentialCutoff) {
+            return evaluateSequentially(left, right);
         }
 
-        for (int i = 0; i < params.size(); i++) {
-            VarDecl param = params.get(i);
-            localVars.put(param.getName(), args.get(i));
-            if (param.isMutable()) {
-                mutableVars.put(param.getName(), true);
+        ThreadContext context = ThreadContext.current();
+        EvalTask leftTask = new EvalTask(left);
+        EvalTask rightTask = new EvalTask(right);
+        // The results stay live until the caller has combined them
+        context.push(leftTask.result);
+        context.push(rightTask.result);
+        runningSides.incrementAndGet();
+        Runnable side = () -> {
+            try {
+                rightTask.compute();
+            } finally {
+                runningSides.decrementAndGet();
             }
+        };
+        if (virtualThreads != null) {
+            virtualThreads.newThread(side).start();
+        } else {
+            SIDES.execute(side);
         }
-
-        Stack<Map<String, Object>> currentStack = getCurrentEnvStack();
-        currentStack.push(localVars);
-        Object result = null;
-
-        List<Stmt> body = funcDef.getBody();
-        if (body.isEmpty()) {
-            currentStack.pop();
-            throw new RuntimeException("Function must end with a return statement: " + funcDef.getName());
+        ThreadContext.enterBlocking();
+        try {
+            leftTask.compute();
+            // A ConcurrentExpr inside a side the Parallelizer forked lets
+            // the pool compensate for this worker while it waits
+            ForkJoinPool.managedBlock(rightTask);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Thread interrupted");
+        } finally {
+            ThreadContext.exitBlocking();
         }
+        context.pop();
+        context.pop();
+        return combine(leftTask, rightTask);
+    }
 
-        for (Stmt stmt : body) {
-            result = executeStatement(stmt);
-            if (result instanceof ReturnValue) {
-                currentStack.pop();
-                return ((ReturnValue) result).getValue();
-            }
+    /**
+     * Whether the sides of a serial expression that the Parallelizer marked
+     * should be forked here: not when the pool has a single worker, nor when
+     * this worker already has enough queued tasks to keep the others busy.
+     */
+    public boolean forkParallel() {
+        if (EVALUATORS.getParallelism() == 1) {
+            return false;
         }
-
-        currentStack.pop();
-        throw new RuntimeException("Function must end with a return statement: " + funcDef.getName());
+        Thread thread = Thread.currentThread();
+        return !(thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == EVALUATORS
+                && RecursiveAction.getSurplusQueuedTaskCount() > PARALLEL_CUTOFF);
     }
 
-    Object executeStatement(Stmt stmt) {
-        Stack<Map<String, Object>> currentStack = getCurrentEnvStack();
-        if (stmt instanceof VarDecl) {
-            VarDecl varDecl = (VarDecl) stmt;
-            Object value = evaluate(varDecl.getInitExpr(), currentStack.peek());
-            currentStack.peek().put(varDecl.getName(), value);
-            if (varDecl.isMutable()) {
-                mutableVars.put(varDecl.getName(), true);
-            }
-        } else if (stmt instanceof AssignStmt) {
-            AssignStmt assignStmt = (AssignStmt) stmt;
-            String name = assignStmt.getName();
-            if (!isMutable(name)) {
-                throw new RuntimeException("Cannot assign to immutable variable: " + name);
-            }
-            Object value = evaluate(assignStmt.getExpr(), currentStack.peek());
-            boolean found = false;
-            for (int i = currentStack.size() - 1; i >= 0; i--) {
-                if (currentStack.get(i).containsKey(name)) {
-                    currentStack.get(i).put(name, value);
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                throw new RuntimeException("Undefined variable: " + name);
-            }
-        } else if (stmt instanceof PrintStmt) {
-            PrintStmt printStmt = (PrintStmt) stmt;
-            System.out.println(evaluate(printStmt.getExpr(), currentStack.peek()));
-        } else if (stmt instanceof IfStmt) {
-            IfStmt ifStmt = (IfStmt) stmt;
-            if ((Boolean) evaluate(ifStmt.getCondition(), currentStack.peek())) {
-                return executeStatement(ifStmt.getThenStmt());
-            } else if (ifStmt.getElseStmt() != null) {
-                return executeStatement(ifStmt.getElseStmt());
-            }
-        } else if (stmt instanceof WhileStmt) {
-            WhileStmt whileStmt = (WhileStmt) stmt;
-            while ((Boolean) evaluate(whileStmt.getCondition(), currentStack.peek())) {
-                Object result = executeStatement(whileStmt.getBody());
-                if (result instanceof ReturnValue) {
-                    return result;
-                }
-            }
-        } else if (stmt instanceof BlockStmt) {
-            BlockStmt blockStmt = (BlockStmt) stmt;
-            currentStack.push(new HashMap<>());
-            List<Stmt> statements = blockStmt.getStatements();
-            if (statements.isEmpty()) {
-                currentStack.pop();
-                return null;
-            }
-            for (Stmt s : statements) {
-                Object result = executeStatement(s);
-                if (result instanceof ReturnValue) {
-                    currentStack.pop();
-                    return result;
-                }
-            }
-            currentStack.pop();
-        } else if (stmt instanceof ReturnStmt) {
-            ReturnStmt returnStmt = (ReturnStmt) stmt;
-            return new ReturnValue(evaluate(returnStmt.getExpr(), currentStack.peek()));
-        } else if (stmt instanceof CallStmt) {
-            CallStmt callStmt = (CallStmt) stmt;
-            List<Object> argValues = new ArrayList<>();
-            for (Expr arg : callStmt.getArgs()) {
-                argValues.add(evaluate(arg, currentStack.peek()));
-            }
-            executeBuiltinOrUserFunction(callStmt.getName(), argValues);
-        }
-        return null;
+    /**
+     * Evaluates the two sides of a serial expression that the Parallelizer
+     * marked: with forkSides() if forkParallel() allows it, otherwise in
+     * order on this thread. Both sides are pure and cannot fail, so
+     * neither waits on the other and the order they finish in cannot show.
+     */
+    public Object[] evaluateParallel(Supplier<Object> left, Supplier<Object> right) {
+        return forkParallel() ? forkSides(left, right) : evaluateSequentially(left, right);
     }
 
-    Object evaluate(Expr expr, Map<String, Object> env) {
-        Stack<Map<String, Object>> currentStack = getCurrentEnvStack();
-        if (expr instanceof ConstExpr) {
-            return ((ConstExpr) expr).getValue();
-        } else if (expr instanceof NilExpr) {
-            return null;
-        } else if (expr instanceof VarExpr) {
-            String name = ((VarExpr) expr).getName();
-            if (env.containsKey(name)) {
-                return env.get(name);
-            }
-            for (int i = currentStack.size() - 1; i >= 0; i--) {
-                if (currentStack.get(i).containsKey(name)) {
-                    return currentStack.get(i).get(name);
-                }
-            }
-            throw new RuntimeException("Undefined variable: " + name);
-        } else if (expr instanceof TypeCastExpr) {
-            TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
-            Object value = evaluate(typeCastExpr.getExpr(), env);
-            if (typeCastExpr.getType() == Type.REF) {
-                if (value != null && !(value instanceof HeapObject)) {
-                    fatalError("Cannot cast non-reference to Ref", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-            }
-            return value;
-        } else if (expr instanceof DotExpr) {
-            DotExpr dotExpr = (DotExpr) expr;
-            Object left = evaluate(dotExpr.getLeft(), env);
-            Object right = evaluate(dotExpr.getRight(), env);
-            return new HeapObject(left, right);
-        } else if (expr instanceof BinaryExpr) {
-            BinaryExpr binaryExpr = (BinaryExpr) expr;
-            Object left = evaluate(binaryExpr.getLeftExpr(), env);
-            Object right = evaluate(binaryExpr.getRightExpr(), env);
-
-            switch (binaryExpr.getOperator()) {
-                case BinaryExpr.PLUS:
-                    return (Long) left + (Long) right;
-                case BinaryExpr.MINUS:
-                    return (Long) left - (Long) right;
-                case BinaryExpr.TIMES:
-                    return (Long) left * (Long) right;
-                case BinaryExpr.LT:
-                    return (Long) left < (Long) right;
-                case BinaryExpr.GT:
-                    return (Long) left > (Long) right;
-                case BinaryExpr.LEQ:
-                    return (Long) left <= (Long) right;
-                case BinaryExpr.GEQ:
-                    return (Long) left >= (Long) right;
-                case BinaryExpr.EQEQ:
-                    if (left == null)
-                        return right == null;
-                    if (right == null)
-                        return false;
-                    if (left instanceof Long && right instanceof Long) {
-                        return ((Long) left).longValue() == ((Long) right).longValue();
-                    }
-                    return left.equals(right);
-                case BinaryExpr.NEQ:
-                    if (left == null)
-                        return right != null;
-                    if (right == null)
-                        return true;
-                    if (left instanceof Long && right instanceof Long) {
-                        return ((Long) left).longValue() != ((Long) right).longValue();
-                    }
-                    return !left.equals(right);
-                case BinaryExpr.AND:
-                    return (Boolean) left && (Boolean) right;
-                case BinaryExpr.OR:
-                    return (Boolean) left || (Boolean) right;
-                default:
-                    throw new RuntimeException("Unknown binary operator");
-            }
-        } else if (expr instanceof UnaryExpr) {
-            UnaryExpr unaryExpr = (UnaryExpr) expr;
-            Object operand = evaluate(unaryExpr.getExpr(), env);
-            switch (unaryExpr.getOperator()) {
-                case UnaryExpr.MINUS:
-                    return -(Long) operand;
-                case UnaryExpr.NOT:
-                    return !(Boolean) operand;
-                default:
-                    throw new RuntimeException("Unknown unary operator");
-            }
-        } else if (expr instanceof CallExpr) {
-            CallExpr callExpr = (CallExpr) expr;
-            List<Object> argValues = new ArrayList<>();
-            for (Expr arg : callExpr.getArguments()) {
-                argValues.add(evaluate(arg, env));
+    /**
+     * Forks the right side of a marked serial expression to the evaluator
+     * pool and runs the left side on the calling thread, in its context. If
+     * no worker has taken the right side by then, the caller runs it too.
+     * Only for sides that cannot wait on each other or take locks.
+     */
+    public Object[] forkSides(Supplier<Object> left, Supplier<Object> right) {
+        ThreadContext context = ThreadContext.current();
+        Thread thread = Thread.currentThread();
+        boolean inPool = thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == EVALUATORS;
+        EvalTask leftTask = new EvalTask(left);
+        EvalTask rightTask = new EvalTask(right);
+        // The results stay live until the caller has combined them
+        context.push(leftTask.result);
+        context.push(rightTask.result);
+        if (inPool) {
+            rightTask.fork();
+        } else {
+            EVALUATORS.execute(rightTask);
+        }
+        leftTask.evaluate();
+        if (inPool && rightTask.tryUnfork()) {
+            rightTask.evaluate();
+        } else {
+            ThreadContext.enterBlocking();
+            try {
+                ForkJoinPool.managedBlock(rightTask);
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Thread interrupted");
+            } finally {
+                ThreadContext.exitBlocking();
             }
-            return executeBuiltinOrUserFunction(callExpr.getFuncName(), argValues);
-        } else if (expr instanceof ConcurrentExpr) {
-            return evaluateConcurrent((ConcurrentExpr) expr, env);
         }
-        throw new RuntimeException("Unknown expression type");
+        context.pop();
+        context.pop();
+        return combine(leftTask, rightTask);
     }
 
-    private Object evaluateConcurrent(ConcurrentExpr expr, Map<String, Object> env) {
-        Map<String, Object> leftEnv = new HashMap<>();
-        Map<String, Object> rightEnv = new HashMap<>();
-        for (Map.Entry<String, Object> entry : env.entrySet()) {
-            leftEnv.put(entry.getKey(), entry.getValue());
-            rightEnv.put(entry.getKey(), entry.getValue());
-        }
-
-        EvalResult leftResult = new EvalResult();
-        EvalResult rightResult = new EvalResult();
-
-        Thread leftThread = new EvalThread(expr.getLeft(), leftEnv, leftResult, getCurrentEnvStack());
-        Thread rightThread = new EvalThread(expr.getRight(), rightEnv, rightResult, getCurrentEnvStack());
-
-        leftThread.start();
-        rightThread.start();
+    private static Object[] combine(EvalTask leftTask, EvalTask rightTask) {
+        if (leftTask.result.error != null)
+            throw leftTask.result.error;
+        if (rightTask.result.error != null)
+            throw rightTask.result.error;
 
-        try {
-            leftThread.join();
-            rightThread.join();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Thread interrupted");
-        }
+        return new Object[] { leftTask.result.value, rightTask.result.value };
+    }
 
-        if (leftResult.error != null)
-            throw leftResult.error;
-        if (rightResult.error != null)
-            throw rightResult.error;
-
-        switch (expr.getOperator()) {
-            case BinaryExpr.PLUS:
-                return (Long) leftResult.value + (Long) rightResult.value;
-            case BinaryExpr.MINUS:
-                return (Long) leftResult.value - (Long) rightResult.value;
-            case BinaryExpr.TIMES:
-                return (Long) leftResult.value * (Long) rightResult.value;
-            case BinaryExpr.DOT:
-                return new HeapObject(leftResult.value, rightResult.value);
-            default:
-                throw new RuntimeException("Invalid operation in concurrent expression");
-        }
+    private static Object[] evaluateSequentially(Supplier<Object> left, Supplier<Object> right) {
+        ThreadContext context = ThreadContext.current();
+        Object leftValue = left.get();
+        // The left value stays live while the right side allocates
+        context.push(leftValue);
+        Object rightValue = right.get();
+        context.pop();
+        return new Object[] { leftValue, rightValue };
     }
 
-    private Object executeBuiltinOrUserFunction(String funcName, List<Object> args) {
+    public Object executeBuiltinOrUserFunction(String funcName, List<Object> args) {
         switch (funcName) {
             case "randomInt":
-                if (args.size() != 1 || !(args.get(0) instanceof Long)) {
-                    throw new RuntimeException("randomInt expects one integer argument");
-                }
-                return (long) random.nextInt(((Long) args.get(0)).intValue());
+                return randomInt(args.get(0));
             case "left":
-                if (args.size() != 1 || !(args.get(0) instanceof HeapObject)) {
-                    fatalError("left() requires a Ref argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-                if (args.get(0) == null) {
-                    fatalError("Nil dereference in left()", EXIT_NIL_REF_ERROR);
-                }
-                return ((HeapObject) args.get(0)).getLeft();
+                return left(args.get(0));
             case "right":
-                if (args.size() != 1 || !(args.get(0) instanceof HeapObject)) {
-                    fatalError("right() requires a Ref argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-                if (args.get(0) == null) {
-                    fatalError("Nil dereference in right()", EXIT_NIL_REF_ERROR);
-                }
-                return ((HeapObject) args.get(0)).getRight();
+                return right(args.get(0));
             case "setLeft":
-                if (args.size() != 2 || !(args.get(0) instanceof HeapObject)) {
-                    fatalError("setLeft() requires a Ref and Q argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-                if (args.get(0) == null) {
-                    fatalError("Nil dereference in setLeft()", EXIT_NIL_REF_ERROR);
-                }
-                ((HeapObject) args.get(0)).setLeft(args.get(1));
-                return 1L;
+                return setLeft(args.get(0), args.get(1));
             case "setRight":
-                if (args.size() != 2 || !(args.get(0) instanceof HeapObject)) {
-                    fatalError("setRight() requires a Ref and Q argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-                if (args.get(0) == null) {
-                    fatalError("Nil dereference in setRight()", EXIT_NIL_REF_ERROR);
-                }
-                ((HeapObject) args.get(0)).setRight(args.get(1));
-                return 1L;
+                return setRight(args.get(0), args.get(1));
             case "isAtom":
-                if (args.size() != 1) {
-                    fatalError("isAtom() requires one Q argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
                 return (args.get(0) == null || args.get(0) instanceof Long) ? 1L : 0L;
             case "isNil":
-                if (args.size() != 1) {
-                    fatalError("isNil() requires one Q argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
                 return args.get(0) == null ? 1L : 0L;
             case "acq":
-                if (args.size() != 1 || !(args.get(0) instanceof HeapObject)) {
-                    fatalError("acq() requires a Ref argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-                if (args.get(0) == null) {
-                    fatalError("Nil dereference in acq()", EXIT_NIL_REF_ERROR);
-                }
-                return ((HeapObject) args.get(0)).tryAcquireLock() ? 1L : 0L;
+                return acq(args.get(0), null);
+            case "tryAcq":
+                return tryAcq(args.get(0), null);
             case "rel":
-                if (args.size() != 1 || !(args.get(0) instanceof HeapObject)) {
-                    fatalError("rel() requires a Ref argument", EXIT_DYNAMIC_TYPE_ERROR);
-                }
-                if (args.get(0) == null) {
-                    fatalError("Nil dereference in rel()", EXIT_NIL_REF_ERROR);
-                }
-                return ((HeapObject) args.get(0)).releaseLock() ? 1L : 0L;
+                return rel(args.get(0));
+            case "free":
+                return free(args.get(0));
             default:
-                FuncDef funcDef = functions.get(funcName);
-                if (funcDef == null) {
-                    throw new RuntimeException("Undefined function: " + funcName);
-                }
-                return executeFunction(funcDef, args);
+                return functions.get(funcName).call(args);
         }
     }
 
-    private static class ReturnValue {
-        private final Object value;
+    public Object randomInt(Object bound) {
+        return (long) random.nextInt(((Long) bound).intValue());
+    }
 
-        ReturnValue(Object value) {
-            this.value = value;
+    public Object left(Object ref) {
+        if (ref == null) {
+            fatalError("Nil dereference in left()", EXIT_NIL_REF_ERROR);
         }
+        return ((HeapObject) ref).getLeft();
+    }
+
+    public Object right(Object ref) {
+        if (ref == null) {
+            fatalError("Nil dereference in right()", EXIT_NIL_REF_ERROR);
+        }
+        return ((HeapObject) ref).getRight();
+    }
 
-        Object getValue() {
-            return value;
+    public Object setLeft(Object ref, Object value) {
+        if (ref == null) {
+            fatalError("Nil dereference in setLeft()", EXIT_NIL_REF_ERROR);
         }
+        ((HeapObject) ref).setLeft(value);
+        return 1L;
+    }
+
+    public Object setRight(Object ref, Object value) {
+        if (ref == null) {
+            fatalError("Nil dereference in setRight()", EXIT_NIL_REF_ERROR);
+        }
+        ((HeapObject) ref).setRight(value);
+        return 1L;
+    }
+
+    /**
+     * Takes the lock of a cell, waiting as long as it takes. Always
+     * returns 1. The site is the call's source location, for -lockprofile.
+     */
+    public Object acq(Object ref, String site) {
+        if (ref == null) {
+            fatalError("Nil dereference in acq()", EXIT_NIL_REF_ERROR);
+        }
+        long cell = ((HeapObject) ref).address;
+        ThreadContext context = ThreadContext.current();
+        LockProfiler profiler = memoryManager.lockProfiler;
+        long start = profiler != null ? System.nanoTime() : 0;
+        if (memoryManager.lockThin(cell, context)) {
+            if (profiler != null) {
+                profiler.acquired(cell, site, context, false, start);
+            }
+            return 1L;
+        }
+        if (memoryManager.spinLockThin(cell, context)) {
+            if (profiler != null) {
+                profiler.acquired(cell, site, context, true, start);
+            }
+            return 1L;
+        }
+        // Inflate first: a moving collection may run while we wait
+        CellLock lock = memoryManager.inflate(cell);
+        if (profiler != null) {
+            profiler.waiting(cell, site, context);
+        }
+        LockWaiter waiter = new LockWaiter(lock, context.lockOwner);
+        // Waiting for the lock must not hold up a collection
+        ThreadContext.enterBlocking();
+        try {
+            ForkJoinPool.managedBlock(waiter);
+        } catch (InterruptedException e) {
+            // LockWaiter never throws; managedBlock only declares it
+            Thread.currentThread().interrupt();
+        } finally {
+            ThreadContext.exitBlocking();
+        }
+        if (profiler != null) {
+            profiler.acquired(cell, site, context, waiter.blocked, start);
+        }
+        return 1L;
+    }
+
+    /** Takes the lock of a cell if that needs no waiting. Returns 1 if it did, 0 otherwise. */
+    public Object tryAcq(Object ref, String site) {
+        if (ref == null) {
+            fatalError("Nil dereference in tryAcq()", EXIT_NIL_REF_ERROR);
+        }
+        long cell = ((HeapObject) ref).address;
+        ThreadContext context = ThreadContext.current();
+        LockProfiler profiler = memoryManager.lockProfiler;
+        long start = profiler != null ? System.nanoTime() : 0;
+        boolean acquired = memoryManager.lockThin(cell, context)
+                || memoryManager.tryLockHeld(cell, context);
+        if (acquired && profiler != null) {
+            profiler.acquired(cell, site, context, false, start);
+        }
+        return acquired ? 1L : 0L;
+    }
+
+    public Object rel(Object ref) {
+        if (ref == null) {
+            fatalError("Nil dereference in rel()", EXIT_NIL_REF_ERROR);
+        }
+        LockProfiler profiler = memoryManager.lockProfiler;
+        if (profiler != null) {
+            // Before the release, so the next holder is never recorded first
+            profiler.released(((HeapObject) ref).address, ThreadContext.current());
+        }
+        return ((HeapObject) ref).releaseLock() ? 1L : 0L;
+    }
+
+    public Object free(Object ref) {
+        if (ref == null) {
+            fatalError("Nil dereference in free()", EXIT_NIL_REF_ERROR);
+        }
+        memoryManager.free(((HeapObject) ref).address);
+        return 1L;
     }
 
     public static void fatalError(String message, int processReturnCode) {
@@ -513,7 +666,4 @@ public class Interpreter {
         System.exit(processReturnCode);
     }
 
-    private boolean isMutable(String varName) {
-        return mutableVars.containsKey(varName);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,265 @@
+package interpreter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instrumentation of acq() and rel(), enabled with -lockprofile. For each
+ * cell and each call site it counts acquisitions and the contended ones,
+ * those that found the cell locked by another thread, and records how
+ * long threads waited, in a histogram with power-of-two buckets, and how
+ * long they held the lock. The report is printed when the process exits,
+ * however it ends: after the program's result, after a fatal error, or
+ * when a deadlocked program is stopped.
+ *
+ * It also keeps a waits-for graph: which cell each waiting thread wants
+ * and which thread holds each cell. A thread about to wait follows that
+ * chain; if it leads back to the thread, the cycle is a deadlock, and it
+ * is reported right away, since a deadlocked program never gets to exit.
+ *
+ * Everything is guarded by the profiler's monitor, which is never held
+ * while a thread waits for a lock or reaches a safepoint. Cells are
+ * keyed by address, so the memory manager reports moved and reclaimed
+ * cells.
+ */
+final class LockProfiler {
+
+    // Bucket i counts waits shorter than 2^i microseconds; the last one takes the rest
+    private static final int BUCKETS = 24;
+    private static final int REPORTED_CELLS = 10;
+
+    private static final class Stats {
+        final String name;
+        long acquires;
+        long contended;
+        long waitNanos;
+        long maxWaitNanos;
+        long holdNanos;
+        long maxHoldNanos;
+        final long[] waits = new long[BUCKETS];
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void acquired(boolean wasContended, long waited) {
+            acquires++;
+            if (wasContended) {
+                contended++;
+            }
+            waitNanos += waited;
+            maxWaitNanos = Math.max(maxWaitNanos, waited);
+            int bucket = 64 - Long.numberOfLeadingZeros(waited / 1000);
+            waits[Math.min(bucket, BUCKETS - 1)]++;
+        }
+
+        void released(long held) {
+            holdNanos += held;
+            maxHoldNanos = Math.max(maxHoldNanos, held);
+        }
+    }
+
+    /** The thread holding a cell, and since when. */
+    private static final class Holder {
+        final long owner;
+        final String site;
+        final long since;
+        int holds = 1;
+
+        Holder(long owner, String site, long since) {
+            this.owner = owner;
+            this.site = site;
+            this.since = since;
+        }
+    }
+
+    private static final class Wait {
+        long cell;
+        final String site;
+
+        Wait(long cell, String site) {
+            this.cell = cell;
+            this.site = site;
+        }
+    }
+
+    private final Map<String, Stats> sites = new HashMap<>();
+    private Map<Long, Stats> cells = new HashMap<>();
+    // Stats of reclaimed cells, kept apart so a reused address starts afresh
+    private final List<Stats> deadCells = new ArrayList<>();
+    private Map<Long, Holder> holders = new HashMap<>();
+    private final Map<Long, Wait> waiting = new HashMap<>();
+    private final List<String> deadlocks = new ArrayList<>();
+
+    private static String siteName(String site) {
+        return site == null ? "unknown site" : site;
+    }
+
+    private static String cellName(long cell) {
+        return "cell 0x" + Long.toHexString(cell);
+    }
+
+    /**
+     * Records that a thread is about to wait for a cell, and reports a
+     * deadlock if the holder of the cell is, through other waits, waiting
+     * for this thread.
+     */
+    synchronized void waiting(long cell, String site, ThreadContext context) {
+        waiting.put(context.lockOwner, new Wait(cell, site));
+        StringBuilder cycle = new StringBuilder();
+        long thread = context.lockOwner;
+        Wait wait = waiting.get(thread);
+        // Every thread is visited at most once unless the chain loops back to us
+        for (int steps = 0; steps <= waiting.size(); steps++) {
+            Holder holder = holders.get(wait.cell);
+            if (holder == null) {
+                return;
+            }
+            cycle.append("  thread ").append(thread).append(" waits at ").append(siteName(wait.site))
+                    .append(" for ").append(cellName(wait.cell)).append(", held by thread ").append(holder.owner)
+                    .append(" since ").append(siteName(holder.site)).append('\n');
+            if (holder.owner == context.lockOwner) {
+                String report = "Deadlock:\n" + cycle;
+                deadlocks.add(report);
+                System.err.print(report);
+                return;
+            }
+            thread = holder.owner;
+            wait = waiting.get(thread);
+            if (wait == null) {
+                return;
+            }
+        }
+    }
+
+    synchronized void acquired(long cell, String site, ThreadContext context, boolean contended, long start) {
+        long now = System.nanoTime();
+        Wait wait = waiting.remove(context.lockOwner);
+        if (wait != null) {
+            // A collection that ran while we waited may have moved the cell
+            cell = wait.cell;
+        }
+        long waited = now - start;
+        siteStats(site).acquired(contended, waited);
+        cellStats(cell).acquired(contended, waited);
+        Holder holder = holders.get(cell);
+        if (holder != null && holder.owner == context.lockOwner) {
+            holder.holds++;
+        } else {
+            holders.put(cell, new Holder(context.lockOwner, site, now));
+        }
+    }
+
+    synchronized void released(long cell, ThreadContext context) {
+        Holder holder = holders.get(cell);
+        if (holder == null || holder.owner != context.lockOwner || --holder.holds > 0) {
+            return;
+        }
+        holders.remove(cell);
+        long held = System.nanoTime() - holder.since;
+        siteStats(holder.site).released(held);
+        cellStats(cell).released(held);
+    }
+
+    /** Follows a cell that a moving collector has copied to a new address. */
+    synchronized void moved(long from, long to) {
+        Stats stats = cells.remove(from);
+        if (stats != null) {
+            cells.put(to, stats);
+        }
+        Holder holder = holders.remove(from);
+        if (holder != null) {
+            holders.put(to, holder);
+        }
+        for (Wait wait : waiting.values()) {
+            if (wait.cell == from) {
+                wait.cell = to;
+            }
+        }
+    }
+
+    /** Forgets the cells in [from, to) that the memory manager has reclaimed. */
+    synchronized void dropped(long from, long to) {
+        Map<Long, Stats> liveCells = new HashMap<>();
+        cells.forEach((cell, stats) -> {
+            if (cell >= from && cell < to) {
+                deadCells.add(stats);
+            } else {
+                liveCells.put(cell, stats);
+            }
+        });
+        cells = liveCells;
+        Map<Long, Holder> liveHolders = new HashMap<>();
+        holders.forEach((cell, holder) -> {
+            if (cell < from || cell >= to) {
+                liveHolders.put(cell, holder);
+            }
+        });
+        holders = liveHolders;
+    }
+
+    /** Forgets a single reclaimed cell. */
+    synchronized void dropped(long cell) {
+        Stats stats = cells.remove(cell);
+        if (stats != null) {
+            deadCells.add(stats);
+        }
+        holders.remove(cell);
+    }
+
+    private Stats siteStats(String site) {
+        return sites.computeIfAbsent(siteName(site), Stats::new);
+    }
+
+    private Stats cellStats(long cell) {
+        return cells.computeIfAbsent(cell, address -> new Stats(cellName(address)));
+    }
+
+    synchronized void report(PrintStream out) {
+        out.println("Lock profile:");
+        List<Stats> bySite = new ArrayList<>(sites.values());
+        bySite.sort(Comparator.comparingLong((Stats stats) -> stats.waitNanos).reversed());
+        for (Stats stats : bySite) {
+            print(out, stats);
+        }
+        List<Stats> byCell = new ArrayList<>(cells.values());
+        byCell.addAll(deadCells);
+        byCell.sort(Comparator.comparingLong((Stats stats) -> stats.waitNanos).reversed());
+        for (Stats stats : byCell.subList(0, Math.min(REPORTED_CELLS, byCell.size()))) {
+            print(out, stats);
+        }
+        if (byCell.size() > REPORTED_CELLS) {
+            out.println("  ... and " + (byCell.size() - REPORTED_CELLS) + " more cells");
+        }
+        for (String deadlock : deadlocks) {
+            out.print(deadlock);
+        }
+    }
+
+    private static void print(PrintStream out, Stats stats) {
+        out.printf("  %s: %d acquires, %d contended, wait %s (max %s), hold %s (max %s)%n", stats.name,
+                stats.acquires, stats.contended, duration(stats.waitNanos), duration(stats.maxWaitNanos),
+                duration(stats.holdNanos), duration(stats.maxHoldNanos));
+        StringBuilder histogram = new StringBuilder("    waits:");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (stats.waits[i] != 0) {
+                histogram.append(i < BUCKETS - 1 ? " <" : " >=").append(duration(1000L << Math.min(i, BUCKETS - 2)))
+                        .append(' ').append(stats.waits[i]);
+            }
+        }
+        out.println(histogram);
+    }
+
+    private static String duration(long nanos) {
+        if (nanos < 1_000_000) {
+            return nanos / 1000 + "us";
+        } else if (nanos < 1_000_000_000) {
+            return nanos / 1_000_000 + "ms";
+        }
+        return String.format("%.1fs", nanos / 1e9);
+    }
+}
@@ -0,0 +1,231 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Allocates from a bump pointer and then from a free list. When both are
+ * exhausted it stops the world, marks every cell reachable from the
+ * mutators' roots, and sweeps the rest into a new free list. Free cells
+ * are linked through their left field.
+ *
+ * Each mutator claims a thread-local allocation buffer of never-used cells
+ * from the bump pointer with one CAS and then allocates from it without
+ * synchronization. Only once the bump region is used up do threads share
+ * the free list. A collection retires every buffer, so the sweep finds
+ * their unused cells, and a thread gives its unused tail back on exit.
+ *
+ * On large heaps the mark phase runs on a ForkJoinPool, with idle
+ * workers stealing grey cells from busy ones. Mark bits are set with a
+ * CAS, so each cell is traced by exactly one worker.
+ */
+final class MarkSweepManager extends MemoryManager {
+
+    static final long MARK = 1L << 4;
+
+    // Below this much allocated heap, forking mark tasks costs more than it saves
+    private static final long PARALLEL_MARK_BYTES = 1 << 20;
+
+    // Separate from the common pool, whose workers may be mutators parked for this collection
+    private static final ForkJoinPool MARKERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private static final long TLAB_BYTES = 256 * CELL_BYTES;
+
+    private final AtomicLong top = new AtomicLong(HEAP_START);
+    private final long bumpEnd;
+    private long freeList;
+
+    MarkSweepManager(long heapBytes) {
+        super(heapBytes);
+        this.bumpEnd = HEAP_START + heapBytes / CELL_BYTES * CELL_BYTES;
+    }
+
+    @Override
+    long allocate(Object left, Object right) {
+        ThreadContext context = ThreadContext.current();
+        long cell = take(context);
+        boolean collected = false;
+        // If another thread collected meanwhile, its sweep may not have left
+        // a cell for us; only our own empty collection means out of memory.
+        while (cell == 0 && !collected) {
+            collected = collect(left, right);
+            cell = take(context);
+        }
+        if (cell == 0) {
+            outOfMemory();
+        }
+        initCell(cell, left, right);
+        return cell;
+    }
+
+    private long take(ThreadContext context) {
+        if (context.tlabTop == context.tlabEnd && !refill(context)) {
+            return takeFree();
+        }
+        long cell = context.tlabTop;
+        context.tlabTop += CELL_BYTES;
+        return cell;
+    }
+
+    /** Claims a new buffer from the bump region; false once it is used up. */
+    private boolean refill(ThreadContext context) {
+        while (true) {
+            long start = top.get();
+            long end = Math.min(start + TLAB_BYTES, bumpEnd);
+            if (start == end) {
+                return false;
+            }
+            if (top.compareAndSet(start, end)) {
+                context.tlabTop = start;
+                context.tlabEnd = end;
+                return true;
+            }
+        }
+    }
+
+    private synchronized long takeFree() {
+        long cell = freeList;
+        if (cell != 0) {
+            freeList = memory.load(fieldAddress(cell, LEFT));
+        }
+        return cell;
+    }
+
+    @Override
+    void retire(ThreadContext context) {
+        // Unless another buffer was claimed after it, hand the unused tail back
+        top.compareAndSet(context.tlabEnd, context.tlabTop);
+        context.tlabTop = context.tlabEnd = 0;
+    }
+
+    private boolean collect(Object left, Object right) {
+        // The values of the cell being allocated are live but not yet stored
+        ThreadContext context = ThreadContext.current();
+        context.push(left);
+        context.push(right);
+        boolean collected = ThreadContext.stopTheWorld(this::markAndSweep);
+        context.pop();
+        context.pop();
+        return collected;
+    }
+
+    private synchronized void markAndSweep() {
+        // Unused buffer cells are unmarked, so the sweep puts them on the free list
+        for (ThreadContext context : ThreadContext.all()) {
+            context.tlabTop = context.tlabEnd = 0;
+        }
+        RootCollector roots = new RootCollector();
+        forEachRoot(roots);
+        MarkTask task = new MarkTask(roots.cells, roots.count, top.get() - HEAP_START >= PARALLEL_MARK_BYTES);
+        if (task.parallel) {
+            MARKERS.invoke(task);
+        } else {
+            task.compute();
+        }
+        sweep();
+    }
+
+    /** Sets the mark bit of a cell; returns false if some marker got there first. */
+    private boolean tryMark(long cell) {
+        while (true) {
+            long header = memory.load(cell);
+            if ((header & MARK) != 0) {
+                return false;
+            }
+            if (memory.atomicCompareAndSet(cell, header, header | MARK)) {
+                return true;
+            }
+        }
+    }
+
+    private static final class RootCollector implements LongConsumer {
+        long[] cells = new long[64];
+        int count;
+
+        @Override
+        public void accept(long cell) {
+            if (count == cells.length) {
+                cells = Arrays.copyOf(cells, count * 2);
+            }
+            cells[count++] = cell;
+        }
+    }
+
+    /**
+     * Traces from the cells on its stack. In parallel mode a task that
+     * holds more grey cells than idle workers are likely to find elsewhere
+     * forks the older half of its stack, which sits nearest the roots, as
+     * a new task that other workers can steal.
+     */
+    private final class MarkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SHARE_DEPTH = 64;
+
+        final boolean parallel;
+        private long[] stack;
+        private int depth;
+
+        MarkTask(long[] cells, int count, boolean parallel) {
+            this.stack = cells.length >= 2 * SHARE_DEPTH ? cells : Arrays.copyOf(cells, 2 * SHARE_DEPTH);
+            this.depth = count;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected void compute() {
+            List<MarkTask> forked = null;
+            while (depth > 0) {
+                if (parallel && depth >= SHARE_DEPTH && getSurplusQueuedTaskCount() < 2) {
+                    int half = depth / 2;
+                    MarkTask task = new MarkTask(Arrays.copyOf(stack, half), half, true);
+                    System.arraycopy(stack, half, stack, 0, depth - half);
+                    depth -= half;
+                    if (forked == null) {
+                        forked = new ArrayList<>();
+                    }
+                    forked.add(task);
+                    task.fork();
+                }
+                long cell = stack[--depth];
+                if (!tryMark(cell)) {
+                    continue;
+                }
+                long header = memory.load(cell);
+                for (int field = LEFT; field <= RIGHT; field++) {
+                    if (((header >>> (2 * field)) & TAG_MASK) == TAG_REF) {
+                        if (depth == stack.length) {
+                            stack = Arrays.copyOf(stack, depth * 2);
+                        }
+                        stack[depth++] = memory.load(fieldAddress(cell, field));
+                    }
+                }
+            }
+            if (forked != null) {
+                for (MarkTask task : forked) {
+                    task.join();
+                }
+            }
+        }
+    }
+
+    private void sweep() {
+        long free = 0;
+        for (long cell = top.get() - CELL_BYTES; cell >= HEAP_START; cell -= CELL_BYTES) {
+            long header = memory.load(cell);
+            if ((header & MARK) != 0) {
+                memory.store(cell, header & ~MARK);
+            } else {
+                dropLock(cell);
+                memory.store(cell, 0);
+                memory.store(fieldAddress(cell, LEFT), free);
+                free = cell;
+            }
+        }
+        freeList = free;
+    }
+}
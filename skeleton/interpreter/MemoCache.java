@@ -0,0 +1,98 @@
+package interpreter;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of memoized calls, keyed by the function and its arguments. Only
+ * functions the PurityAnalysis proved pure and free of allocation, taking
+ * and returning ints, are memoized, so every entry is a plain long and the
+ * cache holds nothing the collector has to trace.
+ *
+ * The cache holds at most about capacity entries, set by -memosize. It is
+ * split into segments by the hash of the key, each an LRU map under its
+ * own lock, so threads looking up different calls seldom wait for one
+ * another; a full segment evicts its least recently used entry. Two
+ * threads that miss on the same call both compute the result and store
+ * the same value.
+ */
+public final class MemoCache {
+
+    public static final class Key {
+        private final String function;
+        private final long[] args;
+        private final int hash;
+
+        private Key(String function, long[] args) {
+            this.function = function;
+            this.args = args;
+            this.hash = 31 * function.hashCode() + Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && function.equals(key.function) && Arrays.equals(args, key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private static final class Segment extends LinkedHashMap<Key, Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    MemoCache(int capacity) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS));
+        }
+    }
+
+    /** The key of a call to function with the count arguments at args[from]. */
+    public static Key key(String function, long[] args, int from, int count) {
+        return new Key(function, Arrays.copyOfRange(args, from, from + count));
+    }
+
+    private Segment segment(Key key) {
+        int hash = key.hash;
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /** Returns the memoized result, or null if the call has not been seen or was evicted. */
+    public Long get(Key key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public void put(Key key, long value) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+}
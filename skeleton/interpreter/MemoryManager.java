@@ -0,0 +1,273 @@
+package interpreter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Owns the Quandary heap. Every Ref value is a cell of three words in a
+ * RawMemory instance: a header word followed by the left and right fields.
+ * The header records what each field holds (nil, int or Ref), so a field
+ * can use all 64 bits for an int or hold the address of another cell.
+ */
+abstract class MemoryManager {
+
+    static final int CELL_BYTES = 3 * RawMemory.BYTES_IN_WORD;
+    static final long HEAP_START = RawMemory.BYTES_IN_WORD;
+
+    static final int LEFT = 0;
+    static final int RIGHT = 1;
+
+    // Header bits 0-1 tag the left field and bits 2-3 the right field
+    static final long TAG_NIL = 0;
+    static final long TAG_INT = 1;
+    static final long TAG_REF = 2;
+    static final long TAG_MASK = 3;
+    static final long TAGS_MASK = 0xF;
+    // Set on a cell the program has freed, until the cell is reused
+    static final long FREED = 1L << 5;
+    // Bits 8 and up hold the cell's lock: either the lock owner id of the
+    // thread holding a thin lock, or INFLATED when a CellLock stands in
+    static final long INFLATED = 1L << 8;
+    static final int OWNER_SHIFT = 9;
+    static final long LOCK_MASK = -1L << 8;
+
+    final RawMemory memory;
+    private final ConcurrentHashMap<Long, CellLock> locks = new ConcurrentHashMap<>();
+    // Set by -lockprofile; told about moved and reclaimed cells
+    LockProfiler lockProfiler;
+
+    MemoryManager(long heapBytes) {
+        this.memory = RawMemory.create(HEAP_START, heapBytes);
+    }
+
+    /**
+     * Returns the address of a new cell holding the two values. Exits with
+     * EXIT_QUANDARY_HEAP_OUT_OF_MEMORY_ERROR when no cell can be found.
+     */
+    abstract long allocate(Object left, Object right);
+
+    /** Writes a complete cell; the cell must not yet be visible to other threads. */
+    void initCell(long cell, Object left, Object right) {
+        memory.store(fieldAddress(cell, LEFT), encode(left));
+        memory.store(fieldAddress(cell, RIGHT), encode(right));
+        memory.store(cell, tag(left) | (tag(right) << 2));
+    }
+
+    Object load(long cell, int field) {
+        long header = memory.load(cell);
+        if ((header & FREED) != 0) {
+            useAfterFree();
+        }
+        long tag = (header >>> (2 * field)) & TAG_MASK;
+        if (tag == TAG_NIL) {
+            return null;
+        }
+        long word = memory.load(fieldAddress(cell, field));
+        return tag == TAG_INT ? (Object) word : new HeapObject(word);
+    }
+
+    void store(long cell, int field, Object value) {
+        memory.store(fieldAddress(cell, field), encode(value));
+        int shift = 2 * field;
+        long tag = tag(value) << shift;
+        // Other header bits may change concurrently, so update the tag with a CAS
+        while (true) {
+            long header = memory.load(cell);
+            if ((header & FREED) != 0) {
+                useAfterFree();
+            }
+            long updated = (header & ~(TAG_MASK << shift)) | tag;
+            if (header == updated || memory.atomicCompareAndSet(cell, header, updated)) {
+                return;
+            }
+        }
+    }
+
+    /** Releases the allocation state of a mutator that is about to detach. */
+    void retire(ThreadContext context) {
+    }
+
+    /** Handles free() of a cell. Only explicit memory management reclaims it; the others ignore it. */
+    void free(long cell) {
+    }
+
+    /**
+     * Takes the thin lock of a cell with a single CAS on its header.
+     * Returns false if the lock is held, by this thread or another, or
+     * has been inflated.
+     */
+    boolean lockThin(long cell, ThreadContext context) {
+        while (true) {
+            long header = memory.load(cell);
+            if ((header & LOCK_MASK) != 0) {
+                return false;
+            }
+            // Retry only if the tags changed under us
+            if (memory.atomicCompareAndSet(cell, header, header | (context.lockOwner << OWNER_SHIFT))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Retries the thin lock of a cell for a while, as long as another
+     * thread holds it thin. Returns false once the lock is inflated, held
+     * by this thread, or still held after CellLock.SPINS tries.
+     */
+    boolean spinLockThin(long cell, ThreadContext context) {
+        long self = context.lockOwner << OWNER_SHIFT;
+        for (int spin = 0; spin <= CellLock.SPINS; spin++) {
+            if (lockThin(cell, context)) {
+                return true;
+            }
+            long lock = memory.load(cell) & LOCK_MASK;
+            if (lock == INFLATED || lock == self) {
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return false;
+    }
+
+    /**
+     * Takes the lock of a cell that lockThin() could not take, without
+     * waiting. A thin lock is inflated only when this thread holds it and
+     * is taking it again; one held thin by another thread is reported as
+     * taken rather than inflated, so a failed tryAcq() leaves no trace.
+     */
+    boolean tryLockHeld(long cell, ThreadContext context) {
+        long lock = memory.load(cell) & LOCK_MASK;
+        if (lock != INFLATED && lock != context.lockOwner << OWNER_SHIFT) {
+            return false;
+        }
+        return inflate(cell).tryAcquire(context.lockOwner);
+    }
+
+    /** Returns the CellLock of a cell, inflating its thin lock first if need be. */
+    CellLock inflate(long cell) {
+        CellLock lock = locks.computeIfAbsent(cell, address -> new CellLock());
+        lock.inflate(() -> {
+            while (true) {
+                long header = memory.load(cell);
+                if ((header & INFLATED) != 0) {
+                    return 0;
+                }
+                if (memory.atomicCompareAndSet(cell, header, (header & ~LOCK_MASK) | INFLATED)) {
+                    return (header & LOCK_MASK) >>> OWNER_SHIFT;
+                }
+            }
+        });
+        return lock;
+    }
+
+    /** Releases the lock of a cell. Returns false if this thread does not hold it. */
+    boolean unlock(long cell, ThreadContext context) {
+        long thin = context.lockOwner << OWNER_SHIFT;
+        while (true) {
+            long header = memory.load(cell);
+            if ((header & INFLATED) != 0) {
+                CellLock lock = locks.get(cell);
+                return lock != null && lock.release(context.lockOwner);
+            }
+            if ((header & LOCK_MASK) != thin) {
+                return false;
+            }
+            if (memory.atomicCompareAndSet(cell, header, header & ~LOCK_MASK)) {
+                return true;
+            }
+        }
+    }
+
+    /** Forgets the lock of a cell that is being reused. */
+    void dropLock(long cell) {
+        locks.remove(cell);
+        if (lockProfiler != null) {
+            lockProfiler.dropped(cell);
+        }
+    }
+
+    /** Forgets the locks of all cells in [from, to). */
+    void dropLocks(long from, long to) {
+        locks.keySet().removeIf(cell -> cell >= from && cell < to);
+        if (lockProfiler != null) {
+            lockProfiler.dropped(from, to);
+        }
+    }
+
+    /** Carries the lock of a cell, held or not, over to the cell's new address. */
+    void moveLock(long from, long to) {
+        CellLock lock = locks.remove(from);
+        if (lock != null) {
+            locks.put(to, lock);
+        }
+        if (lockProfiler != null) {
+            lockProfiler.moved(from, to);
+        }
+    }
+
+    /**
+     * Calls the visitor with the address of every cell a mutator holds
+     * outside the heap. Only valid while the world is stopped.
+     */
+    static void forEachRoot(LongConsumer visitor) {
+        forEachRootHandle(handle -> visitor.accept(handle.address));
+    }
+
+    /**
+     * Calls the visitor with every Ref handle a mutator holds outside the
+     * heap, so that a moving collector can update the handles in place.
+     * Only valid while the world is stopped.
+     */
+    static void forEachRootHandle(Consumer<HeapObject> visitor) {
+        for (ThreadContext context : ThreadContext.all()) {
+            for (int i = 0; i < context.size; i++) {
+                visitRoot(context.roots[i], visitor);
+            }
+        }
+    }
+
+    private static void visitRoot(Object root, Consumer<HeapObject> visitor) {
+        if (root instanceof HeapObject) {
+            visitor.accept((HeapObject) root);
+        } else if (root instanceof Object[]) {
+            for (Object value : (Object[]) root) {
+                visitRoot(value, visitor);
+            }
+        } else if (root instanceof RootSet) {
+            visitRoot(((RootSet) root).roots(), visitor);
+        }
+    }
+
+    static long fieldAddress(long cell, int field) {
+        return cell + (field + 1) * RawMemory.BYTES_IN_WORD;
+    }
+
+    static long tag(Object value) {
+        if (value == null) {
+            return TAG_NIL;
+        } else if (value instanceof Long) {
+            return TAG_INT;
+        } else if (value instanceof HeapObject) {
+            return TAG_REF;
+        }
+        throw new RuntimeException("Cannot store " + value + " in the heap");
+    }
+
+    static long encode(Object value) {
+        if (value instanceof Long) {
+            return (Long) value;
+        } else if (value instanceof HeapObject) {
+            return ((HeapObject) value).address;
+        }
+        return 0;
+    }
+
+    static void outOfMemory() {
+        Interpreter.fatalError("Quandary heap ran out of memory", Interpreter.EXIT_QUANDARY_HEAP_OUT_OF_MEMORY_ERROR);
+    }
+
+    static void useAfterFree() {
+        Interpreter.fatalError("Use of a freed Ref", Interpreter.EXIT_NIL_REF_ERROR);
+    }
+}
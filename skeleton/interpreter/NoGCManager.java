@@ -0,0 +1,26 @@
+package interpreter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out cells from a bump pointer and never reclaims them, so a
+ * program fails once it has allocated more than -heapsize bytes in total.
+ */
+final class NoGCManager extends MemoryManager {
+
+    private final AtomicLong top = new AtomicLong(HEAP_START);
+
+    NoGCManager(long heapBytes) {
+        super(heapBytes);
+    }
+
+    @Override
+    long allocate(Object left, Object right) {
+        long cell = top.getAndAdd(CELL_BYTES);
+        if (cell + CELL_BYTES > memory.getEndAddr()) {
+            outOfMemory();
+        }
+        initCell(cell, left, right);
+        return cell;
+    }
+}
@@ -0,0 +1,81 @@
+package interpreter;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Heap words kept outside the JVM heap, so heaps may exceed 2^31 words
+ * and the JVM's collector never scans them. A ByteBuffer addresses at
+ * most 2 GB, so the heap is split into 1 GB chunks. Chunks are either
+ * direct buffers or mappings of a file, and are accessed through a
+ * VarHandle with the same volatile and compare-and-set semantics as the
+ * AtomicLongArray backing.
+ */
+final class OffHeapMemory extends RawMemory {
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer[] chunks;
+
+    private OffHeapMemory(long startAddr, long bytes, ByteBuffer[] chunks) {
+        super(startAddr, bytes, null);
+        this.chunks = chunks;
+    }
+
+    /** Allocates zeroed anonymous memory. */
+    static OffHeapMemory allocate(long startAddr, long bytes) {
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount(bytes)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect((int) chunkSize(bytes, i));
+        }
+        return new OffHeapMemory(startAddr, bytes, chunks);
+    }
+
+    /** Maps a file, truncated and then grown to the heap size, so it reads as zeros. */
+    static OffHeapMemory map(long startAddr, long bytes, Path file) throws IOException {
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount(bytes)];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Mappings stay valid after the channel is closed
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * CHUNK_BYTES, chunkSize(bytes, i));
+            }
+        }
+        return new OffHeapMemory(startAddr, bytes, chunks);
+    }
+
+    private static int chunkCount(long bytes) {
+        return (int) ((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT);
+    }
+
+    private static long chunkSize(long bytes, int chunk) {
+        return Math.min(CHUNK_BYTES, bytes - chunk * CHUNK_BYTES);
+    }
+
+    @Override
+    long load(long addr) {
+        long offset = getOffset(addr);
+        return (long) WORDS.getVolatile(chunks[(int) (offset >>> CHUNK_SHIFT)], (int) (offset & (CHUNK_BYTES - 1)));
+    }
+
+    @Override
+    void store(long addr, long value) {
+        long offset = getOffset(addr);
+        WORDS.setVolatile(chunks[(int) (offset >>> CHUNK_SHIFT)], (int) (offset & (CHUNK_BYTES - 1)), value);
+    }
+
+    @Override
+    boolean atomicCompareAndSet(long addr, long oldValue, long newValue) {
+        long offset = getOffset(addr);
+        return WORDS.compareAndSet(chunks[(int) (offset >>> CHUNK_SHIFT)], (int) (offset & (CHUNK_BYTES - 1)),
+                oldValue, newValue);
+    }
+}
@@ -1,25 +1,66 @@
 package interpreter;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Word-addressed memory for the Quandary heap. This class keeps the words
+ * in an AtomicLongArray on the JVM heap, which limits it to 2^31 words;
+ * OffHeapMemory keeps them outside the JVM heap and has no such limit.
+ */
 class RawMemory {
 
     static final int BYTES_IN_WORD = 8;
 
+    /** Where create() puts a heap: Array (JVM heap), Direct (off-heap) or Mapped (a mapped file). */
+    static String backing = "Array";
+    /** The file a Mapped heap lives in, or null for a temporary file. */
+    static Path mappedFile;
+
     private final AtomicLongArray memory;
     private final long startAddr;
     private final long endAddr;
 
     RawMemory(long startAddr, long bytes) {
-        assert  bytes % 8 == 0 && bytes / BYTES_IN_WORD <= Integer.MAX_VALUE : "Heap size must be a multiple of 8 bytes and  must not exceed a threshold";
+        this(startAddr, bytes, newArray(bytes));
+    }
+
+    RawMemory(long startAddr, long bytes, AtomicLongArray memory) {
+        assert  bytes % 8 == 0 : "Heap size must be a multiple of 8 bytes";
         assert startAddr % 8 == 0 : "Heap start address must be 8-byte aligned";
         assert startAddr > 0 : "Heap start address must be > 0";
-        int words = (int) (bytes / BYTES_IN_WORD);
-        this.memory = new AtomicLongArray(words);
+        this.memory = memory;
         this.startAddr = startAddr;
         this.endAddr = startAddr + bytes;
     }
 
+    private static AtomicLongArray newArray(long bytes) {
+        assert bytes / BYTES_IN_WORD <= Integer.MAX_VALUE : "Heap size must not exceed a threshold";
+        return new AtomicLongArray((int) (bytes / BYTES_IN_WORD));
+    }
+
+    static RawMemory create(long startAddr, long bytes) {
+        switch (backing) {
+            case "Direct":
+                return OffHeapMemory.allocate(startAddr, bytes);
+            case "Mapped":
+                try {
+                    Path file = mappedFile;
+                    if (file == null) {
+                        file = Files.createTempFile("quandary", ".heap");
+                        file.toFile().deleteOnExit();
+                    }
+                    return OffHeapMemory.map(startAddr, bytes, file);
+                } catch (IOException e) {
+                    throw new RuntimeException("Cannot map the heap file: " + e.getMessage());
+                }
+            default:
+                return new RawMemory(startAddr, bytes);
+        }
+    }
+
     long getStartAddr() {
         return startAddr;
     }
@@ -41,11 +82,16 @@ class RawMemory {
     }
 
     private int getIndex(long addr) {
+        return (int) (getOffset(addr) / BYTES_IN_WORD);
+    }
+
+    /** Returns the byte offset of a word from the start of the heap. */
+    long getOffset(long addr) {
         assert addr % 8 == 0 : "Unexpected non-8-byte-aligned access";
         if (addr < startAddr || addr >= endAddr) {
             throw new RuntimeException("Address " + addr + " is out of bounds");
         }
-        return (int) ((addr - startAddr) / BYTES_IN_WORD);
+        return addr - startAddr;
     }
 
 }
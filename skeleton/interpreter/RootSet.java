@@ -0,0 +1,11 @@
+package interpreter;
+
+/**
+ * A holder of Quandary values that can be registered as a single root,
+ * such as a VM whose stack grows while it is registered.
+ */
+public interface RootSet {
+
+    /** Returns the held values; entries that are not Refs are ignored. */
+    Object[] roots();
+}
@@ -0,0 +1,197 @@
+package interpreter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-thread state the memory manager needs: the roots a thread holds
+ * outside the heap, and whether it is running Quandary code.
+ *
+ * While a tracing collector is active, every frame and every intermediate
+ * value that stays live across an allocation must be pushed here. A root
+ * is a HeapObject, an Object[] of values, or a RootSet.
+ *
+ * Collections stop the world at safepoints: allocation, poll() at loop
+ * back edges and calls, and blocking regions such as joining a child
+ * thread. A thread inside a blocking region does not touch the heap, so a
+ * collection may proceed without it.
+ *
+ * Threads wait on a ReentrantLock condition rather than a monitor, so a
+ * virtual thread waiting out a collection parks instead of pinning its
+ * carrier.
+ */
+public final class ThreadContext {
+
+    /** True when the collector traces roots, so frames and temporaries must be registered. */
+    public static boolean tracing;
+
+    private static final ThreadLocal<ThreadContext> CURRENT = new ThreadLocal<>();
+
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Condition CHANGED = LOCK.newCondition();
+    private static final Set<ThreadContext> CONTEXTS = new HashSet<>();
+    private static int running;
+    private static volatile boolean requested;
+    private static final AtomicLong LOCK_OWNERS = new AtomicLong();
+
+    Object[] roots = new Object[64];
+    int size;
+
+    // The thread's allocation buffer, [tlabTop, tlabEnd); only the memory manager uses it
+    long tlabTop;
+    long tlabEnd;
+
+    // Identifies the thread in the thin locks of cell headers; never 0
+    final long lockOwner = LOCK_OWNERS.incrementAndGet();
+
+    // The context this one was attached over on the same thread, or null
+    private ThreadContext parent;
+
+    private ThreadContext() {
+    }
+
+    public static ThreadContext current() {
+        return CURRENT.get();
+    }
+
+    public void push(Object root) {
+        if (size == roots.length) {
+            roots = Arrays.copyOf(roots, size * 2);
+        }
+        roots[size++] = root;
+    }
+
+    public void pop() {
+        roots[--size] = null;
+    }
+
+    /** Parks the calling thread while a collection is in progress. */
+    public static void poll() {
+        if (requested) {
+            enterBlocking();
+            exitBlocking();
+        }
+    }
+
+    /**
+     * Registers the calling thread as a mutator, waiting out a collection in
+     * progress. A thread that already has a context, such as one running the
+     * left side of a ConcurrentExpr, must be in a blocking region; detach()
+     * makes the old context current again.
+     */
+    static ThreadContext attach() {
+        ThreadContext context = new ThreadContext();
+        context.parent = CURRENT.get();
+        LOCK.lock();
+        try {
+            awaitCollection();
+            CONTEXTS.add(context);
+            running++;
+        } finally {
+            LOCK.unlock();
+        }
+        CURRENT.set(context);
+        return context;
+    }
+
+    static void detach() {
+        ThreadContext context = CURRENT.get();
+        LOCK.lock();
+        try {
+            CONTEXTS.remove(context);
+            running--;
+            CHANGED.signalAll();
+        } finally {
+            LOCK.unlock();
+        }
+        if (context.parent != null) {
+            CURRENT.set(context.parent);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    static void enterBlocking() {
+        LOCK.lock();
+        try {
+            running--;
+            CHANGED.signalAll();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    static void exitBlocking() {
+        LOCK.lock();
+        try {
+            awaitCollection();
+            running++;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Stops all other mutators and runs the collection. Returns false
+     * without running it when another thread was already collecting; the
+     * caller has then waited for that collection to finish.
+     */
+    static boolean stopTheWorld(Runnable collection) {
+        LOCK.lock();
+        try {
+            running--;
+            if (requested) {
+                CHANGED.signalAll();
+                awaitCollection();
+                running++;
+                return false;
+            }
+            requested = true;
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    CHANGED.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                collection.run();
+            } finally {
+                requested = false;
+                running++;
+                CHANGED.signalAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /** Returns the contexts of all mutators; only valid while the world is stopped. */
+    static Set<ThreadContext> all() {
+        return CONTEXTS;
+    }
+
+    // Must be called with LOCK held
+    private static void awaitCollection() {
+        boolean interrupted = false;
+        while (requested) {
+            try {
+                CHANGED.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
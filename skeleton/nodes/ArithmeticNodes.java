@@ -0,0 +1,207 @@
+package nodes;
+
+/**
+ * Quandary arithmetic and ordering only apply to ints, so these nodes are
+ * long-specialized from the start and evaluate their operands through
+ * executeLong and executeBoolean; execute only boxes the final result.
+ */
+public final class ArithmeticNodes {
+
+    private ArithmeticNodes() {
+    }
+
+    static final class AddNode extends BinaryNode {
+        AddNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public long executeLong(Frame frame) {
+            return left.executeLong(frame) + right.executeLong(frame);
+        }
+    }
+
+    static final class SubtractNode extends BinaryNode {
+        SubtractNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public long executeLong(Frame frame) {
+            return left.executeLong(frame) - right.executeLong(frame);
+        }
+    }
+
+    static final class MultiplyNode extends BinaryNode {
+        MultiplyNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public long executeLong(Frame frame) {
+            return left.executeLong(frame) * right.executeLong(frame);
+        }
+    }
+
+    static final class LessThanNode extends BinaryNode {
+        LessThanNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return left.executeLong(frame) < right.executeLong(frame);
+        }
+    }
+
+    static final class GreaterThanNode extends BinaryNode {
+        GreaterThanNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return left.executeLong(frame) > right.executeLong(frame);
+        }
+    }
+
+    static final class LessEqualNode extends BinaryNode {
+        LessEqualNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return left.executeLong(frame) <= right.executeLong(frame);
+        }
+    }
+
+    static final class GreaterEqualNode extends BinaryNode {
+        GreaterEqualNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return left.executeLong(frame) >= right.executeLong(frame);
+        }
+    }
+
+    // && and || short-circuit: the right operand only runs if the left one does not decide.
+    static final class AndNode extends BinaryNode {
+        AndNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return left.executeBoolean(frame) && right.executeBoolean(frame);
+        }
+    }
+
+    static final class OrNode extends BinaryNode {
+        OrNode(ExprNode left, ExprNode right) {
+            super(left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return left.executeBoolean(frame) || right.executeBoolean(frame);
+        }
+    }
+
+    static final class NegateNode extends ExprNode {
+        ExprNode operand;
+
+        NegateNode(ExprNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public long executeLong(Frame frame) {
+            return -operand.executeLong(frame);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (operand == oldChild) {
+                operand = (ExprNode) newChild;
+            }
+        }
+    }
+
+    static final class NotNode extends ExprNode {
+        ExprNode operand;
+
+        NotNode(ExprNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(Frame frame) {
+            return !operand.executeBoolean(frame);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (operand == oldChild) {
+                operand = (ExprNode) newChild;
+            }
+        }
+    }
+}
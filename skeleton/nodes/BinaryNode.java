@@ -0,0 +1,21 @@
+package nodes;
+
+public abstract class BinaryNode extends ExprNode {
+
+    ExprNode left;
+    ExprNode right;
+
+    BinaryNode(ExprNode left, ExprNode right) {
+        this.left = adopt(left);
+        this.right = adopt(right);
+    }
+
+    @Override
+    void replaceChild(Node oldChild, Node newChild) {
+        if (left == oldChild) {
+            left = (ExprNode) newChild;
+        } else if (right == oldChild) {
+            right = (ExprNode) newChild;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package nodes;
+
+import ast.Location;
+import interpreter.Interpreter;
+
+public final class BuiltinNodes {
+
+    private BuiltinNodes() {
+    }
+
+    static boolean isBuiltin(String name) {
+        switch (name) {
+            case "randomInt":
+            case "left":
+            case "right":
+            case "setLeft":
+            case "setRight":
+            case "isAtom":
+            case "isNil":
+            case "acq":
+            case "tryAcq":
+            case "rel":
+            case "free":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns null when the arity does not match, leaving the error to the
+     * generic path. The location names the call site in -lockprofile reports.
+     */
+    static ExprNode create(String name, ExprNode[] args, Location location) {
+        if (args.length == 1) {
+            switch (name) {
+                case "randomInt":
+                    return new RandomIntNode(args);
+                case "left":
+                    return new LeftNode(args);
+                case "right":
+                    return new RightNode(args);
+                case "isAtom":
+                    return new IsAtomNode(args);
+                case "isNil":
+                    return new IsNilNode(args);
+                case "acq":
+                    return new AcqNode(args, location.toString());
+                case "tryAcq":
+                    return new TryAcqNode(args, location.toString());
+                case "rel":
+                    return new RelNode(args);
+                case "free":
+                    return new FreeNode(args);
+                default:
+                    return null;
+            }
+        } else if (args.length == 2) {
+            switch (name) {
+                case "setLeft":
+                    return new SetLeftNode(args);
+                case "setRight":
+                    return new SetRightNode(args);
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    static final class RandomIntNode extends CallNodes.CallNode {
+        RandomIntNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().randomInt(args[0].execute(frame));
+        }
+    }
+
+    static final class LeftNode extends CallNodes.CallNode {
+        LeftNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().left(args[0].execute(frame));
+        }
+    }
+
+    static final class RightNode extends CallNodes.CallNode {
+        RightNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().right(args[0].execute(frame));
+        }
+    }
+
+    static final class SetLeftNode extends CallNodes.CallNode {
+        SetLeftNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object ref = args[0].execute(frame);
+            Object value = executeRooted(args[1], frame, ref);
+            return Interpreter.getInterpreter().setLeft(ref, value);
+        }
+    }
+
+    static final class SetRightNode extends CallNodes.CallNode {
+        SetRightNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object ref = args[0].execute(frame);
+            Object value = executeRooted(args[1], frame, ref);
+            return Interpreter.getInterpreter().setRight(ref, value);
+        }
+    }
+
+    static final class IsAtomNode extends CallNodes.CallNode {
+        IsAtomNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object value = args[0].execute(frame);
+            return (value == null || value instanceof Long) ? 1L : 0L;
+        }
+    }
+
+    static final class IsNilNode extends CallNodes.CallNode {
+        IsNilNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return args[0].execute(frame) == null ? 1L : 0L;
+        }
+    }
+
+    static final class AcqNode extends CallNodes.CallNode {
+        private final String site;
+
+        AcqNode(ExprNode[] args, String site) {
+            super(args);
+            this.site = site;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().acq(args[0].execute(frame), site);
+        }
+    }
+
+    static final class TryAcqNode extends CallNodes.CallNode {
+        private final String site;
+
+        TryAcqNode(ExprNode[] args, String site) {
+            super(args);
+            this.site = site;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().tryAcq(args[0].execute(frame), site);
+        }
+    }
+
+    static final class RelNode extends CallNodes.CallNode {
+        RelNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().rel(args[0].execute(frame));
+        }
+    }
+
+    static final class FreeNode extends CallNodes.CallNode {
+        FreeNode(ExprNode[] args) {
+            super(args);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Interpreter.getInterpreter().free(args[0].execute(frame));
+        }
+    }
+}
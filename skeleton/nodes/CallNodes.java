@@ -0,0 +1,142 @@
+package nodes;
+
+import java.util.Arrays;
+
+import ast.Location;
+import interpreter.Interpreter;
+import interpreter.ThreadContext;
+
+public final class CallNodes {
+
+    private CallNodes() {
+    }
+
+    abstract static class CallNode extends ExprNode {
+        final ExprNode[] args;
+
+        CallNode(ExprNode[] args) {
+            this.args = args;
+            for (ExprNode arg : args) {
+                adopt(arg);
+            }
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] == oldChild) {
+                    args[i] = (ExprNode) newChild;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the callee on first execution, so a site binds directly to a
+     * builtin node or a user function and never looks the name up again.
+     */
+    static final class UninitializedCallNode extends CallNode {
+        private final String name;
+        private final Location location;
+
+        UninitializedCallNode(String name, ExprNode[] args, Location location) {
+            super(args);
+            this.name = name;
+            this.location = location;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return replace(specialize()).execute(frame);
+        }
+
+        private ExprNode specialize() {
+            if (BuiltinNodes.isBuiltin(name)) {
+                ExprNode builtin = BuiltinNodes.create(name, args, location);
+                return builtin != null ? builtin : new GenericCallNode(name, args);
+            }
+            FunctionNode target = Interpreter.getInterpreter().getFunction(name);
+            if (target != null && target.getArity() == args.length) {
+                return new DirectCallNode(target, args);
+            }
+            return new GenericCallNode(name, args);
+        }
+    }
+
+    static final class DirectCallNode extends CallNode {
+        private final FunctionNode target;
+
+        DirectCallNode(FunctionNode target, ExprNode[] args) {
+            super(args);
+            this.target = target;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            if (!ThreadContext.tracing) {
+                return target.invoke(calleeFrame(frame, target.newFrame()));
+            }
+            ThreadContext context = ThreadContext.current();
+            Frame calleeFrame = target.newFrame();
+            context.push(calleeFrame.objects);
+            try {
+                return target.invoke(calleeFrame(frame, calleeFrame));
+            } finally {
+                context.pop();
+            }
+        }
+
+        @Override
+        public long executeLong(Frame frame) {
+            if (!ThreadContext.tracing) {
+                return target.invokeLong(calleeFrame(frame, target.newFrame()));
+            }
+            ThreadContext context = ThreadContext.current();
+            Frame calleeFrame = target.newFrame();
+            context.push(calleeFrame.objects);
+            try {
+                return target.invokeLong(calleeFrame(frame, calleeFrame));
+            } finally {
+                context.pop();
+            }
+        }
+
+        private Frame calleeFrame(Frame frame, Frame calleeFrame) {
+            for (int i = 0; i < args.length; i++) {
+                if (target.longParams[i]) {
+                    calleeFrame.longs[i] = args[i].executeLong(frame);
+                } else {
+                    calleeFrame.objects[i] = args[i].execute(frame);
+                }
+            }
+            return calleeFrame;
+        }
+    }
+
+    /** Calls that cannot be bound statically and report their error when run. */
+    static final class GenericCallNode extends CallNode {
+        private final String name;
+
+        GenericCallNode(String name, ExprNode[] args) {
+            super(args);
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object[] argValues = new Object[args.length];
+            ThreadContext context = ThreadContext.tracing ? ThreadContext.current() : null;
+            if (context != null) {
+                context.push(argValues);
+            }
+            for (int i = 0; i < args.length; i++) {
+                argValues[i] = args[i].execute(frame);
+            }
+            if (context != null) {
+                context.pop();
+            }
+            return Interpreter.getInterpreter().executeBuiltinOrUserFunction(name, Arrays.asList(argValues));
+        }
+    }
+}
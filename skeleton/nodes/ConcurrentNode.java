@@ -0,0 +1,45 @@
+package nodes;
+
+import ast.BinaryExpr;
+import interpreter.HeapObject;
+import interpreter.Interpreter;
+
+/**
+ * A ConcurrentExpr, or with parallel set a serial expression that the
+ * Parallelizer marked, which only forks while the evaluator pool has room.
+ */
+final class ConcurrentNode extends BinaryNode {
+
+    private final int operator;
+    private final boolean parallel;
+
+    ConcurrentNode(int operator, ExprNode left, ExprNode right, boolean parallel) {
+        super(left, right);
+        this.operator = operator;
+        this.parallel = parallel;
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        // Expressions cannot assign variables, so both children read this
+        // frame directly; the parent does not touch it until both join.
+        ExprNode l = left;
+        ExprNode r = right;
+        Interpreter interpreter = Interpreter.getInterpreter();
+        Object[] values = parallel
+                ? interpreter.evaluateParallel(() -> l.execute(frame), () -> r.execute(frame))
+                : interpreter.evaluateConcurrent(() -> l.execute(frame), () -> r.execute(frame));
+        switch (operator) {
+            case BinaryExpr.PLUS:
+                return (Long) values[0] + (Long) values[1];
+            case BinaryExpr.MINUS:
+                return (Long) values[0] - (Long) values[1];
+            case BinaryExpr.TIMES:
+                return (Long) values[0] * (Long) values[1];
+            case BinaryExpr.DOT:
+                return new HeapObject(values[0], values[1]);
+            default:
+                throw new RuntimeException("Invalid operation in concurrent expression");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package nodes;
+
+final class ConstNode extends ExprNode {
+
+    private final Object value;
+
+    ConstNode(Object value) {
+        this.value = value;
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        return value;
+    }
+}
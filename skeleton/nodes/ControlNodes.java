@@ -0,0 +1,253 @@
+package nodes;
+
+import java.util.Arrays;
+
+import interpreter.Interpreter;
+import interpreter.ThreadContext;
+
+public final class ControlNodes {
+
+    private ControlNodes() {
+    }
+
+    static final class BlockNode extends StmtNode {
+        private final StmtNode[] statements;
+
+        BlockNode(StmtNode[] statements) {
+            this.statements = statements;
+            for (StmtNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            for (StmtNode statement : statements) {
+                if (statement.execute(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i] == oldChild) {
+                    statements[i] = (StmtNode) newChild;
+                    return;
+                }
+            }
+        }
+    }
+
+    static final class IfNode extends StmtNode {
+        ExprNode condition;
+        StmtNode thenStmt;
+        StmtNode elseStmt;
+
+        IfNode(ExprNode condition, StmtNode thenStmt, StmtNode elseStmt) {
+            this.condition = adopt(condition);
+            this.thenStmt = adopt(thenStmt);
+            this.elseStmt = adopt(elseStmt);
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            if (condition.executeBoolean(frame)) {
+                return thenStmt.execute(frame);
+            } else if (elseStmt != null) {
+                return elseStmt.execute(frame);
+            }
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) {
+                condition = (ExprNode) newChild;
+            } else if (thenStmt == oldChild) {
+                thenStmt = (StmtNode) newChild;
+            } else if (elseStmt == oldChild) {
+                elseStmt = (StmtNode) newChild;
+            }
+        }
+    }
+
+    static final class WhileNode extends StmtNode {
+        ExprNode condition;
+        StmtNode body;
+
+        WhileNode(ExprNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            while (condition.executeBoolean(frame)) {
+                if (body.execute(frame)) {
+                    return true;
+                }
+                ThreadContext.poll();
+            }
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) {
+                condition = (ExprNode) newChild;
+            } else if (body == oldChild) {
+                body = (StmtNode) newChild;
+            }
+        }
+    }
+
+    static final class ReturnNode extends StmtNode {
+        private final int returnSlot;
+        ExprNode value;
+
+        ReturnNode(ExprNode value, int returnSlot) {
+            this.value = adopt(value);
+            this.returnSlot = returnSlot;
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            frame.objects[returnSlot] = value.execute(frame);
+            return true;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExprNode) newChild;
+            }
+        }
+    }
+
+    static final class LongReturnNode extends StmtNode {
+        private final int returnSlot;
+        ExprNode value;
+
+        LongReturnNode(ExprNode value, int returnSlot) {
+            this.value = adopt(value);
+            this.returnSlot = returnSlot;
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            frame.longs[returnSlot] = value.executeLong(frame);
+            return true;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExprNode) newChild;
+            }
+        }
+    }
+
+    /**
+     * A return of a call to a user function. The arguments are evaluated
+     * into the slots from the return slot up, since they may still read the
+     * caller's locals, and then become the callee's parameters in this
+     * frame. The callee binds on first execution, like a call site.
+     */
+    static final class TailCallNode extends StmtNode {
+        private final String name;
+        private final int scratchSlot;
+        private final ExprNode[] args;
+        private FunctionNode target;
+
+        TailCallNode(String name, ExprNode[] args, int scratchSlot) {
+            this.name = name;
+            this.args = args;
+            this.scratchSlot = scratchSlot;
+            for (ExprNode arg : args) {
+                adopt(arg);
+            }
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            FunctionNode target = this.target;
+            if (target == null) {
+                target = this.target = Interpreter.getInterpreter().getFunction(name);
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (target.longParams[i]) {
+                    frame.longs[scratchSlot + i] = args[i].executeLong(frame);
+                } else {
+                    frame.objects[scratchSlot + i] = args[i].execute(frame);
+                }
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (target.longParams[i]) {
+                    frame.longs[i] = frame.longs[scratchSlot + i];
+                } else {
+                    frame.objects[i] = frame.objects[scratchSlot + i];
+                }
+            }
+            // The caller's locals and the scratch slots are dead
+            Arrays.fill(frame.objects, args.length, scratchSlot + args.length, null);
+            frame.tailCall = target;
+            return true;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] == oldChild) {
+                    args[i] = (ExprNode) newChild;
+                    return;
+                }
+            }
+        }
+    }
+
+    static final class PrintNode extends StmtNode {
+        ExprNode value;
+
+        PrintNode(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            System.out.println(value.execute(frame));
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExprNode) newChild;
+            }
+        }
+    }
+
+    /** A call statement: the call is evaluated and its result dropped. */
+    static final class ExprStmtNode extends StmtNode {
+        ExprNode expr;
+
+        ExprStmtNode(ExprNode expr) {
+            this.expr = adopt(expr);
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            expr.execute(frame);
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (expr == oldChild) {
+                expr = (ExprNode) newChild;
+            }
+        }
+    }
+}
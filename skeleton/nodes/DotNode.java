@@ -0,0 +1,17 @@
+package nodes;
+
+import interpreter.HeapObject;
+
+final class DotNode extends BinaryNode {
+
+    DotNode(ExprNode left, ExprNode right) {
+        super(left, right);
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        Object l = left.execute(frame);
+        Object r = executeRooted(right, frame, l);
+        return new HeapObject(l, r);
+    }
+}
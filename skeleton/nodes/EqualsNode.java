@@ -0,0 +1,25 @@
+package nodes;
+
+/**
+ * == and !=. The static checker only admits ints on both sides, so the
+ * operands are compared unboxed.
+ */
+final class EqualsNode extends BinaryNode {
+
+    final boolean negated;
+
+    EqualsNode(ExprNode left, ExprNode right, boolean negated) {
+        super(left, right);
+        this.negated = negated;
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        return executeBoolean(frame);
+    }
+
+    @Override
+    public boolean executeBoolean(Frame frame) {
+        return (left.executeLong(frame) == right.executeLong(frame)) != negated;
+    }
+}
@@ -0,0 +1,44 @@
+package nodes;
+
+import interpreter.Interpreter;
+import interpreter.ThreadContext;
+
+public abstract class ExprNode extends Node {
+
+    public abstract Object execute(Frame frame);
+
+    /**
+     * Evaluates an expression statically known to be an int. Nodes that
+     * compute ints override this so the value is never boxed.
+     */
+    public long executeLong(Frame frame) {
+        return expectLong(execute(frame));
+    }
+
+    /** Evaluates a condition; comparison nodes override this to avoid boxing. */
+    public boolean executeBoolean(Frame frame) {
+        return (Boolean) execute(frame);
+    }
+
+    /**
+     * Evaluates node while live, an earlier operand held only in a Java
+     * local, stays registered as a root for the collector.
+     */
+    static Object executeRooted(ExprNode node, Frame frame, Object live) {
+        if (!ThreadContext.tracing) {
+            return node.execute(frame);
+        }
+        ThreadContext context = ThreadContext.current();
+        context.push(live);
+        Object value = node.execute(frame);
+        context.pop();
+        return value;
+    }
+
+    static long expectLong(Object value) {
+        if (!(value instanceof Long)) {
+            Interpreter.fatalError("Dynamic cast to int failed", Interpreter.EXIT_DYNAMIC_TYPE_ERROR);
+        }
+        return (Long) value;
+    }
+}
@@ -0,0 +1,23 @@
+package nodes;
+
+/**
+ * Locals of one function activation. Variables declared int live unboxed in
+ * longs and everything else in objects, at the slot the Resolver assigned;
+ * the slot after the locals receives the return value.
+ *
+ * A tail call reuses the frame for its callee: the arguments are evaluated
+ * into the slots from the return slot up, moved down to the parameter
+ * slots, and the callee is left in tailCall for FunctionNode to run next.
+ * Frames are sized for the largest function their tail calls can reach.
+ */
+public final class Frame {
+
+    final Object[] objects;
+    final long[] longs;
+    FunctionNode tailCall;
+
+    Frame(int size) {
+        this.objects = new Object[size];
+        this.longs = new long[size];
+    }
+}
@@ -0,0 +1,148 @@
+package nodes;
+
+import java.util.List;
+
+import interpreter.Interpreter;
+import interpreter.MemoCache;
+import interpreter.ThreadContext;
+
+/**
+ * Executable form of a FuncDef. Parameters occupy the first slots of the
+ * frame and the slot after the locals receives the return value; int
+ * parameters and results are kept unboxed.
+ *
+ * Under a tracing collector the caller registers the frame as a root before
+ * evaluating the arguments into it.
+ *
+ * Tail calls run in a trampoline: a function that ends in one hands its
+ * frame over to the callee, which runs in the same loop, so chains of tail
+ * calls take constant Java stack and set up no new frames.
+ *
+ * A memoizable function looks its arguments up in the interpreter's
+ * MemoCache before it runs, and stores its result there afterwards.
+ */
+public final class FunctionNode extends Node {
+
+    private final String name;
+    private final int arity;
+    private final int frameSize;
+    private final int frameLength;
+    final boolean[] longParams;
+    final boolean returnsLong;
+    private final boolean memoizable;
+    private final StmtNode[] body;
+
+    FunctionNode(String name, int arity, int frameSize, int frameLength, boolean[] longParams, boolean returnsLong,
+            boolean memoizable, StmtNode[] body) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.frameLength = frameLength;
+        this.longParams = longParams;
+        this.returnsLong = returnsLong;
+        this.memoizable = memoizable;
+        this.body = body;
+        for (StmtNode stmt : body) {
+            adopt(stmt);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    public Frame newFrame() {
+        return new Frame(frameLength);
+    }
+
+    public Object call(List<Object> args) {
+        if (args.size() != arity) {
+            throw new RuntimeException("Incorrect number of arguments for function: " + name);
+        }
+        Frame frame = newFrame();
+        for (int i = 0; i < arity; i++) {
+            if (longParams[i]) {
+                frame.longs[i] = ExprNode.expectLong(args.get(i));
+            } else {
+                frame.objects[i] = args.get(i);
+            }
+        }
+        if (!ThreadContext.tracing) {
+            return invoke(frame);
+        }
+        ThreadContext context = ThreadContext.current();
+        context.push(frame.objects);
+        try {
+            return invoke(frame);
+        } finally {
+            context.pop();
+        }
+    }
+
+    public Object invoke(Frame frame) {
+        if (memoizable) {
+            return invokeLong(frame);
+        }
+        FunctionNode last = run(frame);
+        return last.returnsLong ? (Object) frame.longs[last.frameSize] : frame.objects[last.frameSize];
+    }
+
+    public long invokeLong(Frame frame) {
+        MemoCache cache;
+        if (memoizable && (cache = Interpreter.getInterpreter().getMemoCache()) != null) {
+            // The parameters may be overwritten by tail calls, so the key is taken first
+            MemoCache.Key key = MemoCache.key(name, frame.longs, 0, arity);
+            Long memoized = cache.get(key);
+            if (memoized != null) {
+                return memoized;
+            }
+            long value = result(frame);
+            cache.put(key, value);
+            return value;
+        }
+        return result(frame);
+    }
+
+    private long result(Frame frame) {
+        FunctionNode last = run(frame);
+        return last.returnsLong ? frame.longs[last.frameSize] : ExprNode.expectLong(frame.objects[last.frameSize]);
+    }
+
+    /** Runs this function and the tail calls it makes; returns the one that returned. */
+    private FunctionNode run(Frame frame) {
+        FunctionNode function = this;
+        while (true) {
+            function.runBody(frame);
+            FunctionNode next = frame.tailCall;
+            if (next == null) {
+                return function;
+            }
+            frame.tailCall = null;
+            function = next;
+        }
+    }
+
+    private void runBody(Frame frame) {
+        ThreadContext.poll();
+        for (StmtNode stmt : body) {
+            if (stmt.execute(frame)) {
+                return;
+            }
+        }
+        throw new RuntimeException("Function must end with a return statement: " + name);
+    }
+
+    @Override
+    void replaceChild(Node oldChild, Node newChild) {
+        for (int i = 0; i < body.length; i++) {
+            if (body[i] == oldChild) {
+                body[i] = (StmtNode) newChild;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package nodes;
+
+final class IntCastNode extends ExprNode {
+
+    ExprNode operand;
+
+    IntCastNode(ExprNode operand) {
+        this.operand = adopt(operand);
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        return executeLong(frame);
+    }
+
+    @Override
+    public long executeLong(Frame frame) {
+        return expectLong(operand.execute(frame));
+    }
+
+    @Override
+    void replaceChild(Node oldChild, Node newChild) {
+        if (operand == oldChild) {
+            operand = (ExprNode) newChild;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package nodes;
+
+/**
+ * Variable reads and writes. Variables declared int use the Long variants,
+ * which keep the value unboxed in the frame's long slots.
+ */
+public final class LocalNodes {
+
+    private LocalNodes() {
+    }
+
+    static final class ReadLocalNode extends ExprNode {
+        private final int slot;
+
+        ReadLocalNode(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return frame.objects[slot];
+        }
+    }
+
+    static final class ReadLongLocalNode extends ExprNode {
+        private final int slot;
+
+        ReadLongLocalNode(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return frame.longs[slot];
+        }
+
+        @Override
+        public long executeLong(Frame frame) {
+            return frame.longs[slot];
+        }
+    }
+
+    static final class WriteLocalNode extends StmtNode {
+        private final int slot;
+        ExprNode value;
+
+        WriteLocalNode(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            frame.objects[slot] = value.execute(frame);
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExprNode) newChild;
+            }
+        }
+    }
+
+    static final class WriteLongLocalNode extends StmtNode {
+        private final int slot;
+        ExprNode value;
+
+        WriteLongLocalNode(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public boolean execute(Frame frame) {
+            frame.longs[slot] = value.executeLong(frame);
+            return false;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExprNode) newChild;
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package nodes;
+
+/** An int literal; the boxed copy is made once, for the generic path. */
+final class LongConstNode extends ExprNode {
+
+    private final long value;
+    private final Long boxed;
+
+    LongConstNode(long value) {
+        this.value = value;
+        this.boxed = value;
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        return boxed;
+    }
+
+    @Override
+    public long executeLong(Frame frame) {
+        return value;
+    }
+}
@@ -0,0 +1,261 @@
+package nodes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ast.*;
+
+/**
+ * Turns a resolved ast.Program into executable node trees, one FunctionNode
+ * per FuncDef. A return of a call to a user function becomes a tail call.
+ */
+public class Lowering {
+
+    public static Map<String, FunctionNode> lower(Program program) {
+        Map<String, FuncDef> funcDefs = new HashMap<>();
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            funcDefs.put(funcDef.getName(), funcDef);
+        }
+        Map<String, FunctionNode> functions = new HashMap<>();
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            functions.put(funcDef.getName(),
+                    new Lowering(funcDef).lowerFunction(frameLength(funcDef, funcDefs)));
+        }
+        return functions;
+    }
+
+    /**
+     * A frame is handed down every chain of tail calls, so it must hold the
+     * locals, return slot and tail call arguments of every function such a
+     * chain can reach.
+     */
+    private static int frameLength(FuncDef root, Map<String, FuncDef> funcDefs) {
+        int length = 0;
+        Set<FuncDef> seen = new HashSet<>();
+        Deque<FuncDef> work = new ArrayDeque<>();
+        seen.add(root);
+        work.add(root);
+        while (!work.isEmpty()) {
+            FuncDef funcDef = work.poll();
+            length = Math.max(length, funcDef.getFrameSize() + 1);
+            List<CallExpr> tailCalls = new ArrayList<>();
+            collectTailCalls(funcDef.getBody(), tailCalls);
+            for (CallExpr call : tailCalls) {
+                length = Math.max(length, funcDef.getFrameSize() + call.getArguments().size());
+                FuncDef callee = funcDefs.get(call.getFuncName());
+                if (seen.add(callee)) {
+                    work.add(callee);
+                }
+            }
+        }
+        return length;
+    }
+
+    private static void collectTailCalls(List<Stmt> stmts, List<CallExpr> tailCalls) {
+        for (Stmt stmt : stmts) {
+            collectTailCalls(stmt, tailCalls);
+        }
+    }
+
+    private static void collectTailCalls(Stmt stmt, List<CallExpr> tailCalls) {
+        if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            collectTailCalls(ifStmt.getThenStmt(), tailCalls);
+            if (ifStmt.getElseStmt() != null) {
+                collectTailCalls(ifStmt.getElseStmt(), tailCalls);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            collectTailCalls(((WhileStmt) stmt).getBody(), tailCalls);
+        } else if (stmt instanceof BlockStmt) {
+            collectTailCalls(((BlockStmt) stmt).getStatements(), tailCalls);
+        } else if (stmt instanceof ReturnStmt) {
+            CallExpr call = tailCall((ReturnStmt) stmt);
+            if (call != null) {
+                tailCalls.add(call);
+            }
+        }
+    }
+
+    /** Returns the call a return statement returns, if it calls a user function. */
+    private static CallExpr tailCall(ReturnStmt returnStmt) {
+        Expr expr = returnStmt.getExpr();
+        if (expr instanceof CallExpr && !BuiltinNodes.isBuiltin(((CallExpr) expr).getFuncName())) {
+            return (CallExpr) expr;
+        }
+        return null;
+    }
+
+    private final FuncDef funcDef;
+
+    private Lowering(FuncDef funcDef) {
+        this.funcDef = funcDef;
+    }
+
+    private FunctionNode lowerFunction(int frameLength) {
+        boolean[] longParams = new boolean[funcDef.getParams().size()];
+        for (int i = 0; i < longParams.length; i++) {
+            longParams[i] = funcDef.getParams().get(i).getType() == Type.INT;
+        }
+        return new FunctionNode(funcDef.getName(), funcDef.getParams().size(), funcDef.getFrameSize(), frameLength,
+                longParams, funcDef.getReturnType() == Type.INT, funcDef.isMemoizable(),
+                lowerStmts(funcDef.getBody()));
+    }
+
+    private StmtNode[] lowerStmts(List<Stmt> stmts) {
+        StmtNode[] nodes = new StmtNode[stmts.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = lowerStmt(stmts.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode lowerStmt(Stmt stmt) {
+        if (stmt instanceof VarDecl) {
+            VarDecl varDecl = (VarDecl) stmt;
+            ExprNode value = lowerExpr(varDecl.getInitExpr());
+            return lowerWrite(varDecl, value);
+        } else if (stmt instanceof AssignStmt) {
+            // The checker has proven the variable declared and mutable
+            AssignStmt assignStmt = (AssignStmt) stmt;
+            return lowerWrite(assignStmt.getDecl(), lowerExpr(assignStmt.getExpr()));
+        } else if (stmt instanceof PrintStmt) {
+            return new ControlNodes.PrintNode(lowerExpr(((PrintStmt) stmt).getExpr()));
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            StmtNode elseNode = ifStmt.getElseStmt() != null ? lowerStmt(ifStmt.getElseStmt()) : null;
+            return new ControlNodes.IfNode(lowerExpr(ifStmt.getCondition()), lowerStmt(ifStmt.getThenStmt()),
+                    elseNode);
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            return new ControlNodes.WhileNode(lowerExpr(whileStmt.getCondition()), lowerStmt(whileStmt.getBody()));
+        } else if (stmt instanceof BlockStmt) {
+            return new ControlNodes.BlockNode(lowerStmts(((BlockStmt) stmt).getStatements()));
+        } else if (stmt instanceof ReturnStmt) {
+            CallExpr call = tailCall((ReturnStmt) stmt);
+            if (call != null) {
+                return new ControlNodes.TailCallNode(call.getFuncName(), lowerExprs(call.getArguments()),
+                        funcDef.getFrameSize());
+            }
+            ExprNode value = lowerExpr(((ReturnStmt) stmt).getExpr());
+            if (funcDef.getReturnType() == Type.INT) {
+                return new ControlNodes.LongReturnNode(value, funcDef.getFrameSize());
+            }
+            return new ControlNodes.ReturnNode(value, funcDef.getFrameSize());
+        } else if (stmt instanceof CallStmt) {
+            CallStmt callStmt = (CallStmt) stmt;
+            return new ControlNodes.ExprStmtNode(
+                    new CallNodes.UninitializedCallNode(callStmt.getName(), lowerExprs(callStmt.getArgs()),
+                            callStmt.getLocation()));
+        }
+        throw new RuntimeException("Unknown statement type");
+    }
+
+    private StmtNode lowerWrite(VarDecl decl, ExprNode value) {
+        if (decl.getType() == Type.INT) {
+            return new LocalNodes.WriteLongLocalNode(decl.getSlot(), value);
+        }
+        return new LocalNodes.WriteLocalNode(decl.getSlot(), value);
+    }
+
+    private ExprNode[] lowerExprs(List<Expr> exprs) {
+        ExprNode[] nodes = new ExprNode[exprs.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = lowerExpr(exprs.get(i));
+        }
+        return nodes;
+    }
+
+    private ExprNode lowerExpr(Expr expr) {
+        if (expr instanceof ConstExpr) {
+            return new LongConstNode((Long) ((ConstExpr) expr).getValue());
+        } else if (expr instanceof NilExpr) {
+            return new ConstNode(null);
+        } else if (expr instanceof VarExpr) {
+            VarExpr varExpr = (VarExpr) expr;
+            VarDecl decl = varExpr.getDecl();
+            if (decl.getType() == Type.INT) {
+                return new LocalNodes.ReadLongLocalNode(decl.getSlot());
+            }
+            return new LocalNodes.ReadLocalNode(decl.getSlot());
+        } else if (expr instanceof TypeCastExpr) {
+            TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
+            ExprNode operand = lowerExpr(typeCastExpr.getExpr());
+            Type type = typeCastExpr.getType();
+            if (type == Type.Q || type == typeCastExpr.getExpr().getStaticType()) {
+                return operand;
+            }
+            // A downcast from Q, the only cast that can fail
+            return type == Type.REF ? new RefCastNode(operand) : new IntCastNode(operand);
+        } else if (expr instanceof DotExpr) {
+            DotExpr dotExpr = (DotExpr) expr;
+            if (dotExpr.isParallel()) {
+                return new ConcurrentNode(BinaryExpr.DOT, lowerExpr(dotExpr.getLeft()), lowerExpr(dotExpr.getRight()),
+                        true);
+            }
+            return new DotNode(lowerExpr(dotExpr.getLeft()), lowerExpr(dotExpr.getRight()));
+        } else if (expr instanceof BinaryExpr) {
+            return lowerBinary((BinaryExpr) expr);
+        } else if (expr instanceof UnaryExpr) {
+            UnaryExpr unaryExpr = (UnaryExpr) expr;
+            ExprNode operand = lowerExpr(unaryExpr.getExpr());
+            switch (unaryExpr.getOperator()) {
+                case UnaryExpr.MINUS:
+                    return new ArithmeticNodes.NegateNode(operand);
+                case UnaryExpr.NOT:
+                    return new ArithmeticNodes.NotNode(operand);
+                default:
+                    throw new RuntimeException("Unknown unary operator");
+            }
+        } else if (expr instanceof CallExpr) {
+            CallExpr callExpr = (CallExpr) expr;
+            return new CallNodes.UninitializedCallNode(callExpr.getFuncName(), lowerExprs(callExpr.getArguments()),
+                    callExpr.getLocation());
+        } else if (expr instanceof ConcurrentExpr) {
+            ConcurrentExpr concurrentExpr = (ConcurrentExpr) expr;
+            return new ConcurrentNode(concurrentExpr.getOperator(), lowerExpr(concurrentExpr.getLeft()),
+                    lowerExpr(concurrentExpr.getRight()), false);
+        }
+        throw new RuntimeException("Unknown expression type");
+    }
+
+    private ExprNode lowerBinary(BinaryExpr expr) {
+        int operator = expr.getOperator();
+        ExprNode left = lowerExpr(expr.getLeftExpr());
+        ExprNode right = lowerExpr(expr.getRightExpr());
+        if (expr.isParallel()) {
+            return new ConcurrentNode(operator, left, right, true);
+        }
+        switch (operator) {
+            case BinaryExpr.EQEQ:
+                return new EqualsNode(left, right, false);
+            case BinaryExpr.NEQ:
+                return new EqualsNode(left, right, true);
+            case BinaryExpr.PLUS:
+                return new ArithmeticNodes.AddNode(left, right);
+            case BinaryExpr.MINUS:
+                return new ArithmeticNodes.SubtractNode(left, right);
+            case BinaryExpr.TIMES:
+                return new ArithmeticNodes.MultiplyNode(left, right);
+            case BinaryExpr.LT:
+                return new ArithmeticNodes.LessThanNode(left, right);
+            case BinaryExpr.GT:
+                return new ArithmeticNodes.GreaterThanNode(left, right);
+            case BinaryExpr.LEQ:
+                return new ArithmeticNodes.LessEqualNode(left, right);
+            case BinaryExpr.GEQ:
+                return new ArithmeticNodes.GreaterEqualNode(left, right);
+            case BinaryExpr.AND:
+                return new ArithmeticNodes.AndNode(left, right);
+            case BinaryExpr.OR:
+                return new ArithmeticNodes.OrNode(left, right);
+            default:
+                throw new RuntimeException("Unknown binary operator");
+        }
+    }
+}
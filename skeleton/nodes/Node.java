@@ -0,0 +1,30 @@
+package nodes;
+
+public abstract class Node {
+
+    Node parent;
+
+    protected final <T extends Node> T adopt(T child) {
+        if (child != null) {
+            child.parent = this;
+        }
+        return child;
+    }
+
+    /**
+     * Swaps this node for a specialized version in its parent. Racing threads
+     * may both rewrite the same node; the loser's replacement is simply not
+     * installed, and it executes the node it built this one time.
+     */
+    protected final <T extends Node> T replace(T newNode) {
+        newNode.parent = parent;
+        if (parent != null) {
+            parent.replaceChild(this, newNode);
+        }
+        return newNode;
+    }
+
+    void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children");
+    }
+}
@@ -0,0 +1,29 @@
+package nodes;
+
+import interpreter.HeapObject;
+import interpreter.Interpreter;
+
+final class RefCastNode extends ExprNode {
+
+    ExprNode operand;
+
+    RefCastNode(ExprNode operand) {
+        this.operand = adopt(operand);
+    }
+
+    @Override
+    public Object execute(Frame frame) {
+        Object value = operand.execute(frame);
+        if (value != null && !(value instanceof HeapObject)) {
+            Interpreter.fatalError("Cannot cast non-reference to Ref", Interpreter.EXIT_DYNAMIC_TYPE_ERROR);
+        }
+        return value;
+    }
+
+    @Override
+    void replaceChild(Node oldChild, Node newChild) {
+        if (operand == oldChild) {
+            operand = (ExprNode) newChild;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package nodes;
+
+public abstract class StmtNode extends Node {
+
+    /**
+     * Returns true if a return statement was executed, in which case the
+     * value is in the frame's return slot, or the function's frame was
+     * handed to a tail call.
+     */
+    public abstract boolean execute(Frame frame);
+}
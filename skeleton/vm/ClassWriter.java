@@ -0,0 +1,215 @@
+package vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the few parts of a JVM class file the JIT needs: a constant pool,
+ * static fields, and static methods whose code may carry a StackMapTable.
+ */
+final class ClassWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 52;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+    private int fieldCount;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    int utf8(String value) {
+        Integer index = poolIndices.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return newEntry("U" + value, 1);
+    }
+
+    int classRef(String internalName) {
+        return ref("C" + internalName, 7, utf8(internalName));
+    }
+
+    int string(String value) {
+        return ref("S" + value, 8, utf8(value));
+    }
+
+    int longConstant(long value) {
+        Integer index = poolIndices.get("J" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(5);
+            pool.writeLong(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // A long takes two constant pool entries
+        return newEntry("J" + value, 2);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef("F", 9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef("M", 10, owner, name, descriptor);
+    }
+
+    private int memberRef(String kind, int tag, String owner, String name, String descriptor) {
+        String key = kind + owner + "." + name + descriptor;
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        int classIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(classIndex);
+            pool.writeShort(nameAndType);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return newEntry(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return newEntry(key, 1);
+    }
+
+    private int ref(String key, int tag, int target) {
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(target);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return newEntry(key, 1);
+    }
+
+    private int newEntry(String key, int size) {
+        int index = poolCount;
+        poolCount += size;
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            fields.writeShort(access);
+            fields.writeShort(nameIndex);
+            fields.writeShort(descriptorIndex);
+            fields.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fieldCount++;
+    }
+
+    /**
+     * Adds a method. stackMapTable holds the already encoded frame entries,
+     * or is null when the code has no branches.
+     */
+    void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code,
+            int frameCount, byte[] stackMapTable) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeName = utf8("Code");
+        int stackMapName = stackMapTable != null ? utf8("StackMapTable") : 0;
+        try {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            methods.writeShort(1);
+            methods.writeShort(codeName);
+            int stackMapLength = stackMapTable != null ? 6 + 2 + stackMapTable.length : 0;
+            methods.writeInt(2 + 2 + 4 + code.length + 2 + 2 + stackMapLength);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(code.length);
+            methods.write(code);
+            methods.writeShort(0);
+            if (stackMapTable != null) {
+                methods.writeShort(1);
+                methods.writeShort(stackMapName);
+                methods.writeInt(2 + stackMapTable.length);
+                methods.writeShort(frameCount);
+                methods.write(stackMapTable);
+            } else {
+                methods.writeShort(0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray(String thisName, String superName) {
+        int thisIndex = classRef(thisName);
+        int superIndex = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);
+            out.writeShort(fieldCount);
+            out.write(fieldBytes.toByteArray());
+            out.writeShort(methodCount);
+            out.write(methodBytes.toByteArray());
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
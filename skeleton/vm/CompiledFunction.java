@@ -0,0 +1,36 @@
+package vm;
+
+import java.lang.invoke.MethodHandle;
+
+final class CompiledFunction {
+
+    final String name;
+    final int arity;
+    final int numLocals;
+    final boolean[] longParams; // null for concurrent thunks, which always run in the VM
+    final boolean returnsLong;
+    boolean memoizable;
+    int index;
+    int[] code;
+    long[] longConstants;
+    String[] names;
+    int maxStack;
+
+    // Tiering state: invocations plus loop back-edges, and the compiled entry
+    // point (long[] lstack, Object[] ostack, int fp) once the function is hot
+    int hotness;
+    volatile MethodHandle jitEntry;
+    boolean jitFailed;
+
+    CompiledFunction(String name, int arity, int numLocals, boolean[] longParams, boolean returnsLong) {
+        this.name = name;
+        this.arity = arity;
+        this.numLocals = numLocals;
+        this.longParams = longParams;
+        this.returnsLong = returnsLong;
+    }
+
+    int frameSize() {
+        return numLocals + maxStack;
+    }
+}
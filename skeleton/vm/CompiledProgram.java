@@ -0,0 +1,26 @@
+package vm;
+
+import java.util.List;
+
+public final class CompiledProgram {
+
+    final CompiledFunction[] functions;
+    final boolean jitEnabled;
+
+    CompiledProgram(List<CompiledFunction> functions, boolean jitEnabled) {
+        this.jitEnabled = jitEnabled;
+        this.functions = functions.toArray(new CompiledFunction[0]);
+        for (int i = 0; i < this.functions.length; i++) {
+            this.functions[i].index = i;
+        }
+    }
+
+    CompiledFunction lookup(String name) {
+        for (CompiledFunction function : functions) {
+            if (function.name.equals(name)) {
+                return function;
+            }
+        }
+        return null;
+    }
+}
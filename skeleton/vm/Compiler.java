@@ -0,0 +1,624 @@
+package vm;
+
+import static vm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ast.*;
+
+/**
+ * Compiles a resolved ast.Program to VM bytecode. Each expression is
+ * compiled to the kind it naturally produces and converted where the
+ * context asks for another; variables declared int live in long slots.
+ */
+public class Compiler {
+
+    private enum Kind {
+        LONG, BOOL, OBJ
+    }
+
+    /**
+     * Compiles program. With jitEnabled, hot functions are later compiled
+     * further to JVM bytecode by the Jit.
+     */
+    public static CompiledProgram compile(Program program, boolean jitEnabled) {
+        return new Compiler(program, jitEnabled).compileProgram();
+    }
+
+    private final Program program;
+    private final boolean jitEnabled;
+    private final Map<String, FuncDef> funcDefs = new HashMap<>();
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final List<CompiledFunction> functions = new ArrayList<>();
+
+    private Compiler(Program program, boolean jitEnabled) {
+        this.program = program;
+        this.jitEnabled = jitEnabled;
+    }
+
+    private CompiledProgram compileProgram() {
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            boolean[] longParams = new boolean[funcDef.getParams().size()];
+            for (int i = 0; i < longParams.length; i++) {
+                longParams[i] = funcDef.getParams().get(i).getType() == Type.INT;
+            }
+            CompiledFunction function = new CompiledFunction(funcDef.getName(), funcDef.getParams().size(),
+                    funcDef.getFrameSize(), longParams, funcDef.getReturnType() == Type.INT);
+            function.memoizable = funcDef.isMemoizable();
+            funcDefs.put(funcDef.getName(), funcDef);
+            indices.put(funcDef.getName(), functions.size());
+            functions.add(function);
+        }
+        for (FuncDef funcDef : program.getFuncDefList()) {
+            new FunctionCompiler(funcDef, functions.get(indices.get(funcDef.getName()))).compileBody();
+        }
+        return new CompiledProgram(functions, jitEnabled);
+    }
+
+    private static Kind kindOf(Type type) {
+        return type == Type.INT ? Kind.LONG : Kind.OBJ;
+    }
+
+    private final class FunctionCompiler {
+        private final FuncDef funcDef;
+        private final CompiledFunction function;
+        private int[] code = new int[64];
+        private int size;
+        private final List<Long> longConstants = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private int depth;
+        private int maxDepth;
+
+        FunctionCompiler(FuncDef funcDef, CompiledFunction function) {
+            this.funcDef = funcDef;
+            this.function = function;
+        }
+
+        void compileBody() {
+            for (Stmt stmt : funcDef.getBody()) {
+                compileStmt(stmt);
+            }
+            emit(FALL_OFF);
+            finish();
+        }
+
+        void compileThunkBody(Expr expr, Kind kind) {
+            compileExpr(expr, kind);
+            emit(kind == Kind.LONG ? LRETURN : ORETURN);
+            finish();
+        }
+
+        private void finish() {
+            function.code = Arrays.copyOf(code, size);
+            function.longConstants = new long[longConstants.size()];
+            for (int i = 0; i < longConstants.size(); i++) {
+                function.longConstants[i] = longConstants.get(i);
+            }
+            function.names = names.toArray(new String[0]);
+            function.maxStack = maxDepth;
+        }
+
+        private void compileStmt(Stmt stmt) {
+            if (stmt instanceof VarDecl) {
+                VarDecl varDecl = (VarDecl) stmt;
+                Kind kind = kindOf(varDecl.getType());
+                compileExpr(varDecl.getInitExpr(), kind);
+                emitStore(kind, varDecl.getSlot());
+            } else if (stmt instanceof AssignStmt) {
+                // The checker has proven the variable declared and mutable
+                AssignStmt assignStmt = (AssignStmt) stmt;
+                Kind kind = kindOf(assignStmt.getDecl().getType());
+                compileExpr(assignStmt.getExpr(), kind);
+                emitStore(kind, assignStmt.getDecl().getSlot());
+            } else if (stmt instanceof PrintStmt) {
+                Kind kind = compileNatural(((PrintStmt) stmt).getExpr());
+                if (kind == Kind.LONG) {
+                    emit(LPRINT);
+                } else {
+                    convert(kind, Kind.OBJ);
+                    emit(OPRINT);
+                }
+                pop(1);
+            } else if (stmt instanceof IfStmt) {
+                IfStmt ifStmt = (IfStmt) stmt;
+                List<Integer> elseJumps = compileBranch(ifStmt.getCondition(), false);
+                compileStmt(ifStmt.getThenStmt());
+                if (ifStmt.getElseStmt() != null) {
+                    int endJump = emitJump(JMP);
+                    patch(elseJumps);
+                    compileStmt(ifStmt.getElseStmt());
+                    patch(endJump);
+                } else {
+                    patch(elseJumps);
+                }
+            } else if (stmt instanceof WhileStmt) {
+                WhileStmt whileStmt = (WhileStmt) stmt;
+                int top = size;
+                List<Integer> exitJumps = compileBranch(whileStmt.getCondition(), false);
+                compileStmt(whileStmt.getBody());
+                emit(JMP, top);
+                patch(exitJumps);
+            } else if (stmt instanceof BlockStmt) {
+                for (Stmt s : ((BlockStmt) stmt).getStatements()) {
+                    compileStmt(s);
+                }
+            } else if (stmt instanceof ReturnStmt) {
+                if (compileTailCall(((ReturnStmt) stmt).getExpr())) {
+                    return;
+                }
+                compileExpr(((ReturnStmt) stmt).getExpr(), function.returnsLong ? Kind.LONG : Kind.OBJ);
+                emit(function.returnsLong ? LRETURN : ORETURN);
+                pop(1);
+            } else if (stmt instanceof CallStmt) {
+                CallStmt callStmt = (CallStmt) stmt;
+                emitPop(compileCall(callStmt.getName(), callStmt.getArgs(), callStmt.getLocation()));
+            }
+        }
+
+        /**
+         * Compiles a return of a call to a user function without growing the
+         * call stack, if the callee returns the same kind, and returns false
+         * otherwise. A call to the function itself stores the arguments into
+         * the parameters and jumps back to the start; any other callee
+         * replaces the frame with TAILCALL.
+         */
+        private boolean compileTailCall(Expr expr) {
+            if (!(expr instanceof CallExpr) || isBuiltin(((CallExpr) expr).getFuncName())) {
+                return false;
+            }
+            CallExpr callExpr = (CallExpr) expr;
+            FuncDef callee = funcDefs.get(callExpr.getFuncName());
+            if (kindOf(callee.getReturnType()) != kindOf(funcDef.getReturnType())) {
+                return false;
+            }
+            List<Expr> args = callExpr.getArguments();
+            for (int i = 0; i < args.size(); i++) {
+                compileExpr(args.get(i), kindOf(callee.getParams().get(i).getType()));
+            }
+            if (callee == funcDef) {
+                for (int i = args.size() - 1; i >= 0; i--) {
+                    VarDecl param = callee.getParams().get(i);
+                    emitStore(kindOf(param.getType()), param.getSlot());
+                }
+                emit(JMP, 0);
+                return true;
+            }
+            // A callee already running in the JIT is called, and the return follows
+            emit(TAILCALL, indices.get(callee.getName()));
+            pop(args.size());
+            push(1);
+            emit(function.returnsLong ? LRETURN : ORETURN);
+            pop(1);
+            return true;
+        }
+
+        /**
+         * Compiles a condition into jumps, taken when it evaluates to
+         * jumpIf, and returns their operands to patch with the target.
+         * Otherwise control falls through. && and || short-circuit, and
+         * no condition leaves a value on the stack.
+         */
+        private List<Integer> compileBranch(Expr cond, boolean jumpIf) {
+            if (cond instanceof UnaryExpr) {
+                return compileBranch(((UnaryExpr) cond).getExpr(), !jumpIf);
+            }
+            List<Integer> jumps = new ArrayList<>();
+            BinaryExpr binaryExpr = (BinaryExpr) cond;
+            int operator = binaryExpr.getOperator();
+            if (operator == BinaryExpr.AND || operator == BinaryExpr.OR) {
+                // Jumps out of the left side if it decides the outcome
+                boolean decides = operator == BinaryExpr.OR;
+                List<Integer> leftJumps = compileBranch(binaryExpr.getLeftExpr(), decides);
+                if (decides == jumpIf) {
+                    jumps.addAll(leftJumps);
+                    jumps.addAll(compileBranch(binaryExpr.getRightExpr(), jumpIf));
+                } else {
+                    jumps.addAll(compileBranch(binaryExpr.getRightExpr(), jumpIf));
+                    patch(leftJumps);
+                }
+                return jumps;
+            }
+            compileExpr(binaryExpr.getLeftExpr(), Kind.LONG);
+            compileExpr(binaryExpr.getRightExpr(), Kind.LONG);
+            pop(2);
+            jumps.add(emitJump(comparisonJump(operator, jumpIf)));
+            return jumps;
+        }
+
+        /** The jump taken when a comparison evaluates to jumpIf. */
+        private int comparisonJump(int operator, boolean jumpIf) {
+            switch (operator) {
+                case BinaryExpr.LT:
+                    return jumpIf ? JLT : JGE;
+                case BinaryExpr.GT:
+                    return jumpIf ? JGT : JLE;
+                case BinaryExpr.LEQ:
+                    return jumpIf ? JLE : JGT;
+                case BinaryExpr.GEQ:
+                    return jumpIf ? JGE : JLT;
+                case BinaryExpr.EQEQ:
+                    return jumpIf ? JEQ : JNE;
+                case BinaryExpr.NEQ:
+                    return jumpIf ? JNE : JEQ;
+                default:
+                    throw new RuntimeException("Unknown comparison operator");
+            }
+        }
+
+        private void compileExpr(Expr expr, Kind want) {
+            convert(compileNatural(expr), want);
+        }
+
+        private void convert(Kind have, Kind want) {
+            if (have == want) {
+                return;
+            }
+            if (have == Kind.LONG && want == Kind.OBJ) {
+                emit(BOX);
+            } else if (have == Kind.BOOL && want == Kind.OBJ) {
+                emit(BOX_BOOL);
+            } else if (have == Kind.OBJ && want == Kind.LONG) {
+                emit(UNBOX);
+            } else if (have == Kind.OBJ && want == Kind.BOOL) {
+                emit(UNBOX_BOOL);
+            } else if (have == Kind.BOOL) {
+                // Ill-typed: box and fail the cast at run time, as the tree interpreter would
+                emit(BOX_BOOL);
+                emit(UNBOX);
+            } else {
+                emit(BOX);
+                emit(UNBOX_BOOL);
+            }
+        }
+
+        private Kind compileNatural(Expr expr) {
+            if (expr instanceof ConstExpr) {
+                emit(LCONST, longConstant((Long) ((ConstExpr) expr).getValue()));
+                push(1);
+                return Kind.LONG;
+            } else if (expr instanceof NilExpr) {
+                emit(NIL);
+                push(1);
+                return Kind.OBJ;
+            } else if (expr instanceof VarExpr) {
+                VarExpr varExpr = (VarExpr) expr;
+                VarDecl decl = varExpr.getDecl();
+                Kind kind = kindOf(decl.getType());
+                emit(kind == Kind.LONG ? LLOAD : OLOAD, decl.getSlot());
+                push(1);
+                return kind;
+            } else if (expr instanceof TypeCastExpr) {
+                TypeCastExpr typeCastExpr = (TypeCastExpr) expr;
+                Type type = typeCastExpr.getType();
+                if (type == Type.Q || type == typeCastExpr.getExpr().getStaticType()) {
+                    return compileNatural(typeCastExpr.getExpr());
+                }
+                // A downcast from Q; UNBOX checks for an int
+                if (type == Type.INT) {
+                    compileExpr(typeCastExpr.getExpr(), Kind.LONG);
+                    return Kind.LONG;
+                }
+                compileExpr(typeCastExpr.getExpr(), Kind.OBJ);
+                emit(REFCAST);
+                return Kind.OBJ;
+            } else if (expr instanceof DotExpr) {
+                DotExpr dotExpr = (DotExpr) expr;
+                int end = dotExpr.isParallel() && depth == 0
+                        ? emitParallel(BinaryExpr.DOT, dotExpr.getLeft(), dotExpr.getRight()) : -1;
+                compileExpr(dotExpr.getLeft(), Kind.OBJ);
+                compileExpr(dotExpr.getRight(), Kind.OBJ);
+                emit(DOT);
+                pop(1);
+                if (end >= 0) {
+                    patch(end);
+                }
+                return Kind.OBJ;
+            } else if (expr instanceof BinaryExpr) {
+                return compileBinary((BinaryExpr) expr);
+            } else if (expr instanceof UnaryExpr) {
+                UnaryExpr unaryExpr = (UnaryExpr) expr;
+                if (unaryExpr.getOperator() == UnaryExpr.MINUS) {
+                    compileExpr(unaryExpr.getExpr(), Kind.LONG);
+                    emit(LNEG);
+                    return Kind.LONG;
+                }
+                compileExpr(unaryExpr.getExpr(), Kind.BOOL);
+                emit(NOT);
+                return Kind.BOOL;
+            } else if (expr instanceof CallExpr) {
+                CallExpr callExpr = (CallExpr) expr;
+                return compileCall(callExpr.getFuncName(), callExpr.getArguments(), callExpr.getLocation());
+            } else if (expr instanceof ConcurrentExpr) {
+                return compileConcurrent((ConcurrentExpr) expr);
+            }
+            throw new RuntimeException("Unknown expression type");
+        }
+
+        private Kind compileBinary(BinaryExpr expr) {
+            int operator = expr.getOperator();
+            if (expr.isParallel() && depth == 0) {
+                int end = emitParallel(operator, expr.getLeftExpr(), expr.getRightExpr());
+                compileExpr(expr.getLeftExpr(), Kind.LONG);
+                compileExpr(expr.getRightExpr(), Kind.LONG);
+                pop(1);
+                emit(operator == BinaryExpr.PLUS ? LADD : operator == BinaryExpr.MINUS ? LSUB : LMUL);
+                patch(end);
+                return Kind.LONG;
+            }
+            if (operator == BinaryExpr.AND || operator == BinaryExpr.OR) {
+                compileExpr(expr.getLeftExpr(), Kind.BOOL);
+                compileExpr(expr.getRightExpr(), Kind.BOOL);
+                emit(operator == BinaryExpr.AND ? AND : OR);
+                pop(1);
+                return Kind.BOOL;
+            }
+            compileExpr(expr.getLeftExpr(), Kind.LONG);
+            compileExpr(expr.getRightExpr(), Kind.LONG);
+            pop(1);
+            switch (operator) {
+                case BinaryExpr.PLUS:
+                    emit(LADD);
+                    return Kind.LONG;
+                case BinaryExpr.MINUS:
+                    emit(LSUB);
+                    return Kind.LONG;
+                case BinaryExpr.TIMES:
+                    emit(LMUL);
+                    return Kind.LONG;
+                case BinaryExpr.LT:
+                    emit(LLT);
+                    return Kind.BOOL;
+                case BinaryExpr.GT:
+                    emit(LGT);
+                    return Kind.BOOL;
+                case BinaryExpr.LEQ:
+                    emit(LLE);
+                    return Kind.BOOL;
+                case BinaryExpr.GEQ:
+                    emit(LGE);
+                    return Kind.BOOL;
+                case BinaryExpr.EQEQ:
+                    emit(LEQ);
+                    return Kind.BOOL;
+                case BinaryExpr.NEQ:
+                    emit(LNE);
+                    return Kind.BOOL;
+                default:
+                    throw new RuntimeException("Unknown binary operator");
+            }
+        }
+
+        private Kind compileCall(String name, List<Expr> args, Location location) {
+            Kind builtin = compileBuiltin(name, args, location);
+            if (builtin != null) {
+                return builtin;
+            }
+            FuncDef callee = funcDefs.get(name);
+            if (callee != null && !isBuiltin(name) && callee.getParams().size() == args.size()) {
+                for (int i = 0; i < args.size(); i++) {
+                    compileExpr(args.get(i), kindOf(callee.getParams().get(i).getType()));
+                }
+                emit(CALL, indices.get(name));
+                pop(args.size());
+                push(1);
+                return kindOf(callee.getReturnType());
+            }
+            for (Expr arg : args) {
+                compileExpr(arg, Kind.OBJ);
+            }
+            emit(GENERIC_CALL, name(name), args.size());
+            pop(args.size());
+            push(1);
+            return Kind.OBJ;
+        }
+
+        /**
+         * Returns null if the call is not a builtin with the right arity. ACQ
+         * and TRYACQ take the call's location as a name, for -lockprofile.
+         */
+        private Kind compileBuiltin(String name, List<Expr> args, Location location) {
+            int opcode;
+            Kind result;
+            switch (name) {
+                case "randomInt":
+                    opcode = RANDOMINT;
+                    result = Kind.LONG;
+                    break;
+                case "left":
+                    opcode = LEFT;
+                    result = Kind.OBJ;
+                    break;
+                case "right":
+                    opcode = RIGHT;
+                    result = Kind.OBJ;
+                    break;
+                case "isAtom":
+                    opcode = ISATOM;
+                    result = Kind.LONG;
+                    break;
+                case "isNil":
+                    opcode = ISNIL;
+                    result = Kind.LONG;
+                    break;
+                case "acq":
+                    opcode = ACQ;
+                    result = Kind.LONG;
+                    break;
+                case "tryAcq":
+                    opcode = TRYACQ;
+                    result = Kind.LONG;
+                    break;
+                case "rel":
+                    opcode = REL;
+                    result = Kind.LONG;
+                    break;
+                case "free":
+                    opcode = FREE;
+                    result = Kind.LONG;
+                    break;
+                case "setLeft":
+                    opcode = SETLEFT;
+                    result = Kind.LONG;
+                    break;
+                case "setRight":
+                    opcode = SETRIGHT;
+                    result = Kind.LONG;
+                    break;
+                default:
+                    return null;
+            }
+            int arity = (opcode == SETLEFT || opcode == SETRIGHT) ? 2 : 1;
+            if (args.size() != arity) {
+                return null;
+            }
+            for (Expr arg : args) {
+                compileExpr(arg, Kind.OBJ);
+            }
+            if (opcode == ACQ || opcode == TRYACQ) {
+                emit(opcode, name(location.toString()));
+            } else {
+                emit(opcode);
+            }
+            pop(arity);
+            push(1);
+            return result;
+        }
+
+        private boolean isBuiltin(String name) {
+            switch (name) {
+                case "randomInt":
+                case "left":
+                case "right":
+                case "setLeft":
+                case "setRight":
+                case "isAtom":
+                case "isNil":
+                case "acq":
+                case "tryAcq":
+                case "rel":
+                case "free":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private Kind compileConcurrent(ConcurrentExpr expr) {
+            Kind kind = expr.getOperator() == BinaryExpr.DOT ? Kind.OBJ : Kind.LONG;
+            int left = compileThunk(expr.getLeft(), kind);
+            int right = compileThunk(expr.getRight(), kind);
+            emit(CONCURRENT, expr.getOperator(), left);
+            emitOperand(right);
+            push(1);
+            return kind;
+        }
+
+        /**
+         * Emits PARALLEL ahead of the serial code of an expression the
+         * Parallelizer marked, and returns the operand to patch with the end
+         * of that code. Only used where the operand stack is empty, so that
+         * the JIT can join the forked and the serial path.
+         */
+        private int emitParallel(int operator, Expr leftExpr, Expr rightExpr) {
+            Kind kind = operator == BinaryExpr.DOT ? Kind.OBJ : Kind.LONG;
+            int left = compileThunk(leftExpr, kind);
+            int right = compileThunk(rightExpr, kind);
+            emit(PARALLEL, operator, left);
+            emitOperand(right);
+            emitOperand(-1);
+            return size - 1;
+        }
+
+        /**
+         * A side of a concurrent or parallel expression becomes its own function that
+         * starts with a copy of this function's locals.
+         */
+        private int compileThunk(Expr expr, Kind kind) {
+            CompiledFunction thunk = new CompiledFunction(funcDef.getName() + "$" + functions.size(),
+                    funcDef.getFrameSize(), funcDef.getFrameSize(), null, kind == Kind.LONG);
+            int index = functions.size();
+            functions.add(thunk);
+            // Nested concurrent expressions add their own thunks after this one
+            new FunctionCompiler(funcDef, thunk).compileThunkBody(expr, kind);
+            return index;
+        }
+
+        private void emitStore(Kind kind, int slot) {
+            emit(kind == Kind.LONG ? LSTORE : OSTORE, slot);
+            pop(1);
+        }
+
+        private void emitPop(Kind kind) {
+            emit(kind == Kind.OBJ ? OPOP : LPOP);
+            pop(1);
+        }
+
+        private int emitJump(int opcode) {
+            emit(opcode, -1);
+            return size - 1;
+        }
+
+        private void patch(int operand) {
+            code[operand] = size;
+        }
+
+        private void patch(List<Integer> operands) {
+            for (int operand : operands) {
+                patch(operand);
+            }
+        }
+
+        private int longConstant(long value) {
+            int index = longConstants.indexOf(value);
+            if (index < 0) {
+                longConstants.add(value);
+                index = longConstants.size() - 1;
+            }
+            return index;
+        }
+
+        private int name(String name) {
+            int index = names.indexOf(name);
+            if (index < 0) {
+                names.add(name);
+                index = names.size() - 1;
+            }
+            return index;
+        }
+
+        private void emit(int opcode) {
+            emitOperand(opcode);
+        }
+
+        private void emit(int opcode, int operand) {
+            emitOperand(opcode);
+            emitOperand(operand);
+        }
+
+        private void emit(int opcode, int operand1, int operand2) {
+            emitOperand(opcode);
+            emitOperand(operand1);
+            emitOperand(operand2);
+        }
+
+        private void emitOperand(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = value;
+        }
+
+        private void push(int n) {
+            depth += n;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void pop(int n) {
+            depth -= n;
+        }
+    }
+}
@@ -0,0 +1,704 @@
+package vm;
+
+import static vm.Opcodes.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import ast.BinaryExpr;
+import interpreter.Interpreter;
+import interpreter.ThreadContext;
+
+/**
+ * Second tier: translates hot functions from VM bytecode to JVM bytecode so
+ * HotSpot can optimize Quandary code directly.
+ *
+ * A hot function is compiled together with every function it can reach
+ * through calls into one hidden class, so calls inside the bundle are plain
+ * static calls. Each function becomes a static method whose int parameters,
+ * locals and results are primitive longs. A VM slot may hold a long in one
+ * block and an object in a sibling block, so every slot gets a long local
+ * and an object local. Statements leave the operand stack empty, so every
+ * branch target shares a single stack map frame.
+ *
+ * Functions that make generic calls are left to the VM, as are concurrent
+ * thunks and memoizable functions, whose calls go through the VM's
+ * MemoCache; generated code hands concurrent expressions back to the VM.
+ *
+ * A self tail call is already a loop in the VM bytecode. Any other tail
+ * call becomes a plain call followed by the return, unless it is part of
+ * a cycle of tail calls: mutually tail-recursive functions stay in the
+ * VM, which runs them in constant space.
+ */
+final class Jit {
+
+    static final int THRESHOLD = 1000;
+
+    private static final String CLASS_NAME = "vm/JitCode";
+    private static final String RUNTIME = "vm/JitRuntime";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final int EMPTY_STACK = -1;
+    private static final MethodType ENTRY_TYPE = MethodType.methodType(void.class, long[].class, Object[].class,
+            int.class);
+
+    private Jit() {
+    }
+
+    static void invoke(MethodHandle entry, long[] lstack, Object[] ostack, int fp) {
+        try {
+            entry.invokeExact(lstack, ostack, fp);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static synchronized void compile(CompiledProgram program, CompiledFunction root) {
+        if (root.jitEntry != null || root.jitFailed) {
+            return;
+        }
+        List<CompiledFunction> bundle = reachable(program, root);
+        if (bundle == null) {
+            root.jitFailed = true;
+            return;
+        }
+        ClassWriter cw = new ClassWriter();
+        cw.addField(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "sites", "[" + OBJECT_DESC);
+        List<Object> sites = new ArrayList<>();
+        try {
+            for (CompiledFunction fn : bundle) {
+                new MethodTranslator(cw, program, fn, sites).translate();
+                addEntry(cw, fn);
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(cw.toByteArray(CLASS_NAME, OBJECT), true);
+            Class<?> code = lookup.lookupClass();
+            lookup.findStaticSetter(code, "sites", Object[].class).invoke(sites.toArray());
+            for (CompiledFunction fn : bundle) {
+                if (fn.jitEntry == null) {
+                    fn.jitEntry = lookup.findStatic(code, entryName(fn), ENTRY_TYPE);
+                }
+            }
+        } catch (Throwable t) {
+            // Anything the translator cannot handle keeps running in the VM
+            root.jitFailed = true;
+        }
+    }
+
+    /**
+     * Returns the root and its transitive callees, or null if one of them
+     * cannot be compiled. Generated code keeps Refs in JVM locals, where a
+     * tracing collector cannot find them, so under one a bundle must not
+     * reach a safepoint: it may not allocate or block in acq().
+     */
+    private static List<CompiledFunction> reachable(CompiledProgram program, CompiledFunction root) {
+        Set<CompiledFunction> seen = new LinkedHashSet<>();
+        Deque<CompiledFunction> work = new ArrayDeque<>();
+        seen.add(root);
+        work.add(root);
+        while (!work.isEmpty()) {
+            CompiledFunction fn = work.poll();
+            if (fn.longParams == null || (fn.memoizable && Interpreter.getInterpreter().getMemoCache() != null)) {
+                return null;
+            }
+            int[] code = fn.code;
+            for (int pc = 0; pc < code.length; pc += 1 + operandCount(code[pc])) {
+                if (code[pc] == GENERIC_CALL) {
+                    return null;
+                }
+                if (ThreadContext.tracing && (code[pc] == DOT || code[pc] == CONCURRENT || code[pc] == PARALLEL
+                        || code[pc] == ACQ)) {
+                    return null;
+                }
+                if (code[pc] == CALL || code[pc] == TAILCALL) {
+                    CompiledFunction callee = program.functions[code[pc + 1]];
+                    if (code[pc] == TAILCALL && tailCalls(program, callee, fn)) {
+                        return null;
+                    }
+                    if (seen.add(callee)) {
+                        work.add(callee);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(seen);
+    }
+
+    /** Whether from reaches to through a chain of tail calls. */
+    private static boolean tailCalls(CompiledProgram program, CompiledFunction from, CompiledFunction to) {
+        Set<CompiledFunction> seen = new LinkedHashSet<>();
+        Deque<CompiledFunction> work = new ArrayDeque<>();
+        seen.add(from);
+        work.add(from);
+        while (!work.isEmpty()) {
+            CompiledFunction fn = work.poll();
+            if (fn == to) {
+                return true;
+            }
+            int[] code = fn.code;
+            for (int pc = 0; pc < code.length; pc += 1 + operandCount(code[pc])) {
+                if (code[pc] == TAILCALL && seen.add(program.functions[code[pc + 1]])) {
+                    work.add(program.functions[code[pc + 1]]);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String methodName(CompiledFunction fn) {
+        return "q" + fn.index;
+    }
+
+    private static String entryName(CompiledFunction fn) {
+        return "r" + fn.index;
+    }
+
+    private static String descriptor(CompiledFunction fn) {
+        StringBuilder sb = new StringBuilder("(");
+        for (boolean isLong : fn.longParams) {
+            sb.append(isLong ? "J" : OBJECT_DESC);
+        }
+        return sb.append(")").append(fn.returnsLong ? "J" : OBJECT_DESC).toString();
+    }
+
+    /**
+     * Adds the entry point used by the VM: reads the arguments from the VM
+     * stacks at fp and stores the result back at fp.
+     */
+    private static void addEntry(ClassWriter cw, CompiledFunction fn) {
+        Bytes code = new Bytes();
+        code.u1(fn.returnsLong ? 0x2a : 0x2b); // aload_0 / aload_1
+        code.u1(0x1c); // iload_2
+        for (int i = 0; i < fn.arity; i++) {
+            code.u1(fn.longParams[i] ? 0x2a : 0x2b);
+            code.u1(0x1c);
+            code.u1(0x11); // sipush
+            code.u2(i);
+            code.u1(0x60); // iadd
+            code.u1(fn.longParams[i] ? 0x2f : 0x32); // laload / aaload
+        }
+        code.u1(0xb8); // invokestatic
+        code.u2(cw.methodRef(CLASS_NAME, methodName(fn), descriptor(fn)));
+        code.u1(fn.returnsLong ? 0x50 : 0x53); // lastore / aastore
+        code.u1(0xb1); // return
+        cw.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, entryName(fn), "([J[" + OBJECT_DESC + "I)V",
+                2 + 2 * fn.arity + 3, 3, code.toByteArray(), 0, null);
+    }
+
+    /** Growable byte buffer for method code. */
+    private static final class Bytes {
+        byte[] buf = new byte[256];
+        int length;
+
+        void u1(int value) {
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, length * 2);
+            }
+            buf[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void patch2(int position, int value) {
+            buf[position] = (byte) (value >> 8);
+            buf[position + 1] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, length);
+        }
+    }
+
+    private static final class MethodTranslator {
+        private final ClassWriter cw;
+        private final CompiledProgram program;
+        private final CompiledFunction fn;
+        private final List<Object> sites;
+        private final Bytes out = new Bytes();
+        private final int[] longLocal;
+        private final int[] objectLocal;
+        private int maxLocals;
+        private int depth;
+        private int maxDepth;
+        private final List<int[]> fixups = new ArrayList<>();
+
+        MethodTranslator(ClassWriter cw, CompiledProgram program, CompiledFunction fn, List<Object> sites) {
+            this.cw = cw;
+            this.program = program;
+            this.fn = fn;
+            this.sites = sites;
+            longLocal = new int[fn.numLocals];
+            objectLocal = new int[fn.numLocals];
+            Arrays.fill(longLocal, -1);
+            Arrays.fill(objectLocal, -1);
+            for (int i = 0; i < fn.arity; i++) {
+                if (fn.longParams[i]) {
+                    longLocal[i] = maxLocals;
+                    maxLocals += 2;
+                } else {
+                    objectLocal[i] = maxLocals++;
+                }
+            }
+            for (int s = 0; s < fn.numLocals; s++) {
+                if (longLocal[s] < 0) {
+                    longLocal[s] = maxLocals;
+                    maxLocals += 2;
+                }
+                if (objectLocal[s] < 0) {
+                    objectLocal[s] = maxLocals++;
+                }
+            }
+        }
+
+        void translate() {
+            int[] code = fn.code;
+            Map<Integer, Integer> framePcs = framePcs(code);
+
+            for (int s = 0; s < fn.numLocals; s++) {
+                if (s >= fn.arity || !fn.longParams[s]) {
+                    out.u1(0x09); // lconst_0
+                    localOp(0x37, longLocal[s]); // lstore
+                }
+                if (s >= fn.arity || fn.longParams[s]) {
+                    out.u1(0x01); // aconst_null
+                    localOp(0x3a, objectLocal[s]); // astore
+                }
+            }
+            peak(2);
+            if (out.length == 0) {
+                out.u1(0x00); // nop, so no frame falls on offset 0
+            }
+
+            int[] jvmPc = new int[code.length + 1];
+            for (int pc = 0; pc < code.length; pc += 1 + operandCount(code[pc])) {
+                jvmPc[pc] = out.length;
+                if (framePcs.containsKey(pc) && depth != stackSlots(framePcs.get(pc))) {
+                    throw new IllegalStateException("Operand stack not empty at a branch target");
+                }
+                translateInstruction(code, pc);
+            }
+            jvmPc[code.length] = out.length;
+
+            for (int[] fixup : fixups) {
+                int offset = jvmPc[fixup[2]] - fixup[1];
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("Branch offset too large");
+                }
+                out.patch2(fixup[0], offset);
+            }
+            if (out.length > 65535) {
+                throw new IllegalStateException("Method too large");
+            }
+
+            TreeMap<Integer, Integer> frameOffsets = new TreeMap<>();
+            for (Map.Entry<Integer, Integer> frame : framePcs.entrySet()) {
+                frameOffsets.put(jvmPc[frame.getKey()], frame.getValue());
+            }
+            Bytes stackMap = new Bytes();
+            int previous = -1;
+            for (Map.Entry<Integer, Integer> frame : frameOffsets.entrySet()) {
+                int offset = frame.getKey();
+                stackMap.u1(255); // full_frame
+                stackMap.u2(previous < 0 ? offset : offset - previous - 1);
+                writeLocals(stackMap);
+                if (frame.getValue() == EMPTY_STACK) {
+                    stackMap.u2(0);
+                } else {
+                    stackMap.u2(1);
+                    stackMap.u1(frame.getValue());
+                    if (frame.getValue() == 7) {
+                        stackMap.u2(cw.classRef(OBJECT));
+                    }
+                }
+                previous = offset;
+            }
+            cw.addMethod(ClassWriter.ACC_STATIC, methodName(fn), descriptor(fn), maxDepth, maxLocals,
+                    out.toByteArray(), frameOffsets.size(), frameOffsets.isEmpty() ? null : stackMap.toByteArray());
+        }
+
+        /**
+         * Branch targets and instructions that follow an unconditional
+         * transfer, with the verification type on the operand stack there.
+         * Only the end of a PARALLEL's serial code has a value on the stack.
+         */
+        private Map<Integer, Integer> framePcs(int[] code) {
+            Map<Integer, Integer> pcs = new TreeMap<>();
+            for (int pc = 0; pc < code.length; pc += 1 + operandCount(code[pc])) {
+                int opcode = code[pc];
+                int next = pc + 1 + operandCount(opcode);
+                if (opcode >= JMP && opcode <= JNE) {
+                    pcs.put(code[pc + 1], EMPTY_STACK);
+                }
+                if ((opcode == JMP || opcode == LRETURN || opcode == ORETURN || opcode == FALL_OFF
+                        || opcode == PARALLEL) && next < code.length) {
+                    pcs.put(next, EMPTY_STACK);
+                }
+                if (opcode == PARALLEL) {
+                    pcs.put(code[pc + 4], code[pc + 1] == BinaryExpr.DOT ? 7 : 4); // Object or Long
+                }
+            }
+            return pcs;
+        }
+
+        private static int stackSlots(int type) {
+            return type == EMPTY_STACK ? 0 : type == 4 ? 2 : 1;
+        }
+
+        private void writeLocals(Bytes stackMap) {
+            List<Integer> types = new ArrayList<>();
+            for (int index = 0; index < maxLocals; index++) {
+                if (isLongLocal(index)) {
+                    types.add(4); // Long
+                    index++;
+                } else {
+                    types.add(7); // Object
+                }
+            }
+            stackMap.u2(types.size());
+            int objectClass = cw.classRef(OBJECT);
+            for (int type : types) {
+                stackMap.u1(type);
+                if (type == 7) {
+                    stackMap.u2(objectClass);
+                }
+            }
+        }
+
+        private boolean isLongLocal(int index) {
+            for (int local : longLocal) {
+                if (local == index) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void translateInstruction(int[] code, int pc) {
+            int opcode = code[pc];
+            switch (opcode) {
+                case LCONST: {
+                    long value = fn.longConstants[code[pc + 1]];
+                    if (value == 0 || value == 1) {
+                        out.u1(0x09 + (int) value); // lconst_0 / lconst_1
+                    } else {
+                        out.u1(0x14); // ldc2_w
+                        out.u2(cw.longConstant(value));
+                    }
+                    push(2);
+                    break;
+                }
+                case NIL:
+                    out.u1(0x01); // aconst_null
+                    push(1);
+                    break;
+                case LLOAD:
+                    localOp(0x16, longLocal[code[pc + 1]]);
+                    push(2);
+                    break;
+                case OLOAD:
+                    localOp(0x19, objectLocal[code[pc + 1]]);
+                    push(1);
+                    break;
+                case LSTORE:
+                    localOp(0x37, longLocal[code[pc + 1]]);
+                    depth -= 2;
+                    break;
+                case OSTORE:
+                    localOp(0x3a, objectLocal[code[pc + 1]]);
+                    depth -= 1;
+                    break;
+                case BOX:
+                    invoke("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;", 2, 1);
+                    break;
+                case BOX_BOOL:
+                    invoke(RUNTIME, "boxBool", "(J)" + OBJECT_DESC, 2, 1);
+                    break;
+                case UNBOX:
+                    invoke(RUNTIME, "unbox", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+                case UNBOX_BOOL:
+                    invoke(RUNTIME, "unboxBool", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+                case LPOP:
+                    out.u1(0x58); // pop2
+                    depth -= 2;
+                    break;
+                case OPOP:
+                    out.u1(0x57); // pop
+                    depth -= 1;
+                    break;
+
+                case LADD:
+                    out.u1(0x61);
+                    depth -= 2;
+                    break;
+                case LSUB:
+                    out.u1(0x65);
+                    depth -= 2;
+                    break;
+                case LMUL:
+                    out.u1(0x69);
+                    depth -= 2;
+                    break;
+                case LNEG:
+                    out.u1(0x75);
+                    break;
+                case LLT:
+                    invoke(RUNTIME, "lt", "(JJ)J", 4, 2);
+                    break;
+                case LGT:
+                    invoke(RUNTIME, "gt", "(JJ)J", 4, 2);
+                    break;
+                case LLE:
+                    invoke(RUNTIME, "le", "(JJ)J", 4, 2);
+                    break;
+                case LGE:
+                    invoke(RUNTIME, "ge", "(JJ)J", 4, 2);
+                    break;
+                case LEQ:
+                    invoke(RUNTIME, "eq", "(JJ)J", 4, 2);
+                    break;
+                case LNE:
+                    invoke(RUNTIME, "ne", "(JJ)J", 4, 2);
+                    break;
+                case ISNIL:
+                    invoke(RUNTIME, "isNull", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+                case AND:
+                    out.u1(0x7f); // land
+                    depth -= 2;
+                    break;
+                case OR:
+                    out.u1(0x81); // lor
+                    depth -= 2;
+                    break;
+                case NOT:
+                    out.u1(0x0a); // lconst_1
+                    out.u1(0x83); // lxor
+                    peak(2);
+                    break;
+
+                case JMP:
+                    branch(0xa7, code[pc + 1]); // goto
+                    break;
+                case JLT:
+                case JGT:
+                case JLE:
+                case JGE:
+                case JEQ:
+                case JNE:
+                    out.u1(0x94); // lcmp
+                    depth -= 4;
+                    branch(compareBranch(opcode), code[pc + 1]);
+                    break;
+                case CALL:
+                case TAILCALL: {
+                    CompiledFunction callee = program.functions[code[pc + 1]];
+                    int argSlots = 0;
+                    for (boolean isLong : callee.longParams) {
+                        argSlots += isLong ? 2 : 1;
+                    }
+                    invoke(CLASS_NAME, methodName(callee), descriptor(callee), argSlots, callee.returnsLong ? 2 : 1);
+                    break;
+                }
+                case LRETURN:
+                    out.u1(0xad);
+                    depth -= 2;
+                    break;
+                case ORETURN:
+                    out.u1(0xb0);
+                    depth -= 1;
+                    break;
+                case CONCURRENT:
+                    translateConcurrent(code[pc + 1], program.functions[code[pc + 2]],
+                            program.functions[code[pc + 3]], false);
+                    break;
+                case PARALLEL: {
+                    // Forks and skips the serial code that follows, or runs it
+                    invoke(RUNTIME, "forkParallel", "()Z", 0, 1);
+                    depth -= 1;
+                    branch(0x99, pc + 5); // ifeq
+                    translateConcurrent(code[pc + 1], program.functions[code[pc + 2]],
+                            program.functions[code[pc + 3]], true);
+                    branch(0xa7, code[pc + 4]); // goto
+                    depth = 0;
+                    break;
+                }
+
+                case DOT:
+                    invoke(RUNTIME, "dot", "(" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC, 2, 1);
+                    break;
+                case REFCAST:
+                    invoke(RUNTIME, "refCast", "(" + OBJECT_DESC + ")" + OBJECT_DESC, 1, 1);
+                    break;
+                case LEFT:
+                    invoke(RUNTIME, "left", "(" + OBJECT_DESC + ")" + OBJECT_DESC, 1, 1);
+                    break;
+                case RIGHT:
+                    invoke(RUNTIME, "right", "(" + OBJECT_DESC + ")" + OBJECT_DESC, 1, 1);
+                    break;
+                case SETLEFT:
+                    invoke(RUNTIME, "setLeft", "(" + OBJECT_DESC + OBJECT_DESC + ")J", 2, 2);
+                    break;
+                case SETRIGHT:
+                    invoke(RUNTIME, "setRight", "(" + OBJECT_DESC + OBJECT_DESC + ")J", 2, 2);
+                    break;
+                case ISATOM:
+                    invoke(RUNTIME, "isAtom", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+                case ACQ:
+                    ldcString(fn.names[code[pc + 1]]);
+                    invoke(RUNTIME, "acq", "(" + OBJECT_DESC + "Ljava/lang/String;)J", 2, 2);
+                    break;
+                case TRYACQ:
+                    ldcString(fn.names[code[pc + 1]]);
+                    invoke(RUNTIME, "tryAcq", "(" + OBJECT_DESC + "Ljava/lang/String;)J", 2, 2);
+                    break;
+                case REL:
+                    invoke(RUNTIME, "rel", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+                case RANDOMINT:
+                    invoke(RUNTIME, "randomInt", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+                case FREE:
+                    invoke(RUNTIME, "free", "(" + OBJECT_DESC + ")J", 1, 2);
+                    break;
+
+                case LPRINT:
+                    invoke(RUNTIME, "printLong", "(J)V", 2, 0);
+                    break;
+                case OPRINT:
+                    invoke(RUNTIME, "printObject", "(" + OBJECT_DESC + ")V", 1, 0);
+                    break;
+                case FALL_OFF:
+                    ldcString(fn.name);
+                    invoke(RUNTIME, "fallOff", "(Ljava/lang/String;)Ljava/lang/RuntimeException;", 1, 1);
+                    out.u1(0xbf); // athrow
+                    depth -= 1;
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot compile opcode " + opcode);
+            }
+        }
+
+        /** Copies the locals into fresh arrays and lets the VM run both sides. */
+        private void translateConcurrent(int operator, CompiledFunction left, CompiledFunction right,
+                boolean parallel) {
+            sites.add(new JitRuntime.ConcurrentSite(program, operator, left, right, parallel));
+            out.u1(0xb2); // getstatic
+            out.u2(cw.fieldRef(CLASS_NAME, "sites", "[" + OBJECT_DESC));
+            pushInt(sites.size() - 1);
+            out.u1(0x32); // aaload
+            push(1);
+            peak(1);
+
+            pushInt(fn.numLocals);
+            out.u1(0xbc); // newarray
+            out.u1(11); // long
+            push(1);
+            for (int s = 0; s < fn.numLocals; s++) {
+                out.u1(0x59); // dup
+                pushInt(s);
+                localOp(0x16, longLocal[s]);
+                out.u1(0x50); // lastore
+            }
+            peak(4);
+
+            pushInt(fn.numLocals);
+            out.u1(0xbd); // anewarray
+            out.u2(cw.classRef(OBJECT));
+            push(1);
+            for (int s = 0; s < fn.numLocals; s++) {
+                out.u1(0x59); // dup
+                pushInt(s);
+                localOp(0x19, objectLocal[s]);
+                out.u1(0x53); // aastore
+            }
+            peak(3);
+
+            String args = "(" + OBJECT_DESC + "[J[" + OBJECT_DESC + ")";
+            if (operator == BinaryExpr.DOT) {
+                invoke(RUNTIME, "concurrentObject", args + OBJECT_DESC, 3, 1);
+            } else {
+                invoke(RUNTIME, "concurrentLong", args + "J", 3, 2);
+            }
+        }
+
+        private int compareBranch(int opcode) {
+            switch (opcode) {
+                case JLT:
+                    return 0x9b; // iflt
+                case JGT:
+                    return 0x9d; // ifgt
+                case JLE:
+                    return 0x9e; // ifle
+                case JGE:
+                    return 0x9c; // ifge
+                case JEQ:
+                    return 0x99; // ifeq
+                default:
+                    return 0x9a; // ifne
+            }
+        }
+
+        private void branch(int opcode, int target) {
+            int start = out.length;
+            out.u1(opcode);
+            fixups.add(new int[] { out.length, start, target });
+            out.u2(0);
+        }
+
+        private void invoke(String owner, String name, String descriptor, int popSlots, int pushSlots) {
+            out.u1(0xb8); // invokestatic
+            out.u2(cw.methodRef(owner, name, descriptor));
+            depth -= popSlots;
+            push(pushSlots);
+        }
+
+        private void ldcString(String value) {
+            out.u1(0x13); // ldc_w
+            out.u2(cw.string(value));
+            push(1);
+        }
+
+        private void pushInt(int value) {
+            out.u1(0x11); // sipush
+            out.u2(value);
+        }
+
+        private void localOp(int opcode, int index) {
+            if (index < 256) {
+                out.u1(opcode);
+                out.u1(index);
+            } else {
+                out.u1(0xc4); // wide
+                out.u1(opcode);
+                out.u2(index);
+            }
+        }
+
+        private void push(int slots) {
+            depth += slots;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void peak(int extra) {
+            maxDepth = Math.max(maxDepth, depth + extra);
+        }
+    }
+}
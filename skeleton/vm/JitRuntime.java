@@ -0,0 +1,146 @@
+package vm;
+
+import interpreter.HeapObject;
+import interpreter.Interpreter;
+
+/**
+ * Static helpers called from JIT-generated code for everything that is not
+ * plain long arithmetic. They behave exactly like the matching VM
+ * instructions; HotSpot inlines the small ones.
+ */
+final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    /** Operands of a CONCURRENT instruction, passed to generated code as a constant. */
+    static final class ConcurrentSite {
+        final CompiledProgram program;
+        final int operator;
+        final CompiledFunction left;
+        final CompiledFunction right;
+        final boolean parallel;
+
+        ConcurrentSite(CompiledProgram program, int operator, CompiledFunction left, CompiledFunction right,
+                boolean parallel) {
+            this.program = program;
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.parallel = parallel;
+        }
+    }
+
+    static Object boxBool(long value) {
+        return value != 0;
+    }
+
+    static long unbox(Object value) {
+        return VM.unbox(value);
+    }
+
+    static long unboxBool(Object value) {
+        return (Boolean) value ? 1 : 0;
+    }
+
+    static long lt(long a, long b) {
+        return a < b ? 1 : 0;
+    }
+
+    static long gt(long a, long b) {
+        return a > b ? 1 : 0;
+    }
+
+    static long le(long a, long b) {
+        return a <= b ? 1 : 0;
+    }
+
+    static long ge(long a, long b) {
+        return a >= b ? 1 : 0;
+    }
+
+    static long eq(long a, long b) {
+        return a == b ? 1 : 0;
+    }
+
+    static long ne(long a, long b) {
+        return a != b ? 1 : 0;
+    }
+
+    static long isNull(Object value) {
+        return value == null ? 1 : 0;
+    }
+
+    static long isAtom(Object value) {
+        return (value == null || value instanceof Long) ? 1 : 0;
+    }
+
+    static Object dot(Object left, Object right) {
+        return new HeapObject(left, right);
+    }
+
+    static Object refCast(Object value) {
+        return VM.refCast(value);
+    }
+
+    static Object left(Object ref) {
+        return Interpreter.getInterpreter().left(ref);
+    }
+
+    static Object right(Object ref) {
+        return Interpreter.getInterpreter().right(ref);
+    }
+
+    static long setLeft(Object ref, Object value) {
+        return (Long) Interpreter.getInterpreter().setLeft(ref, value);
+    }
+
+    static long setRight(Object ref, Object value) {
+        return (Long) Interpreter.getInterpreter().setRight(ref, value);
+    }
+
+    static long acq(Object ref, String site) {
+        return (Long) Interpreter.getInterpreter().acq(ref, site);
+    }
+
+    static long tryAcq(Object ref, String site) {
+        return (Long) Interpreter.getInterpreter().tryAcq(ref, site);
+    }
+
+    static long rel(Object ref) {
+        return (Long) Interpreter.getInterpreter().rel(ref);
+    }
+
+    static long free(Object ref) {
+        return (Long) Interpreter.getInterpreter().free(ref);
+    }
+
+    static long randomInt(Object bound) {
+        return (Long) Interpreter.getInterpreter().randomInt(bound);
+    }
+
+    static void printLong(long value) {
+        System.out.println(value);
+    }
+
+    static void printObject(Object value) {
+        System.out.println(value);
+    }
+
+    static RuntimeException fallOff(String name) {
+        return new RuntimeException("Function must end with a return statement: " + name);
+    }
+
+    static boolean forkParallel() {
+        return Interpreter.getInterpreter().forkParallel();
+    }
+
+    static long concurrentLong(Object site, long[] locals, Object[] objects) {
+        return (Long) concurrentObject(site, locals, objects);
+    }
+
+    static Object concurrentObject(Object site, long[] locals, Object[] objects) {
+        ConcurrentSite s = (ConcurrentSite) site;
+        return VM.concurrent(s.program, s.operator, s.left, s.right, s.parallel, locals, objects, 0);
+    }
+}
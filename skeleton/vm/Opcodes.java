@@ -0,0 +1,109 @@
+package vm;
+
+/**
+ * Instruction set of the bytecode VM. Operands follow the opcode inline in
+ * the code array. Every stack slot and local is either a long (ints and
+ * condition results, 0 or 1) or an Object (Q and Ref values), and the
+ * compiler picks the instruction for the kind it knows statically.
+ */
+final class Opcodes {
+
+    private Opcodes() {
+    }
+
+    // Constants, locals and conversions
+    static final int LCONST = 1;        // index into the long constant pool
+    static final int NIL = 2;
+    static final int LLOAD = 3;         // slot
+    static final int OLOAD = 4;         // slot
+    static final int LSTORE = 5;        // slot
+    static final int OSTORE = 6;        // slot
+    static final int BOX = 7;
+    static final int BOX_BOOL = 8;
+    static final int UNBOX = 9;
+    static final int LPOP = 10;
+    static final int OPOP = 11;
+    static final int UNBOX_BOOL = 12;
+
+    // Arithmetic and conditions
+    static final int LADD = 20;
+    static final int LSUB = 21;
+    static final int LMUL = 22;
+    static final int LNEG = 23;
+    static final int LLT = 24;
+    static final int LGT = 25;
+    static final int LLE = 26;
+    static final int LGE = 27;
+    static final int LEQ = 28;
+    static final int LNE = 29;
+    static final int AND = 34;
+    static final int OR = 35;
+    static final int NOT = 36;
+
+    // Control flow; jump operands are absolute code offsets
+    static final int JMP = 40;          // target
+    static final int JLT = 42;          // target, taken if a < b
+    static final int JGT = 43;
+    static final int JLE = 44;
+    static final int JGE = 45;
+    static final int JEQ = 46;
+    static final int JNE = 47;
+    static final int CALL = 48;         // function index
+    static final int GENERIC_CALL = 49; // name index, argument count
+    static final int LRETURN = 50;
+    static final int ORETURN = 51;
+    static final int CONCURRENT = 52;   // operator, left thunk index, right thunk index
+    static final int TAILCALL = 53;     // function index; a return of the same kind follows
+    static final int PARALLEL = 54;     // operator, left thunk index, right thunk index, end; the serial code follows
+
+    // Heap and builtins
+    static final int DOT = 60;
+    static final int REFCAST = 61;
+    static final int LEFT = 62;
+    static final int RIGHT = 63;
+    static final int SETLEFT = 64;
+    static final int SETRIGHT = 65;
+    static final int ISATOM = 66;
+    static final int ISNIL = 67;
+    static final int ACQ = 68;          // site name index
+    static final int REL = 69;
+    static final int RANDOMINT = 70;
+    static final int FREE = 71;
+    static final int TRYACQ = 72;       // site name index
+
+    // Statements and errors
+    static final int LPRINT = 80;
+    static final int OPRINT = 81;
+    static final int FALL_OFF = 86;
+
+    /** Number of operands that follow the opcode. */
+    static int operandCount(int opcode) {
+        switch (opcode) {
+            case LCONST:
+            case LLOAD:
+            case OLOAD:
+            case LSTORE:
+            case OSTORE:
+            case JMP:
+            case JLT:
+            case JGT:
+            case JLE:
+            case JGE:
+            case JEQ:
+            case JNE:
+            case CALL:
+            case TAILCALL:
+            case ACQ:
+            case TRYACQ:
+                return 1;
+            case GENERIC_CALL:
+                return 2;
+            case CONCURRENT:
+                return 3;
+            case PARALLEL:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package vm;
+
+import static vm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import ast.BinaryExpr;
+import interpreter.HeapObject;
+import interpreter.Interpreter;
+import interpreter.MemoCache;
+import interpreter.RootSet;
+import interpreter.ThreadContext;
+
+/**
+ * Executes compiled functions with a switch-dispatch loop. Each thread of
+ * evaluation has its own VM: a long stack and an object stack that share a
+ * stack pointer, and an explicit stack of call frames, so Quandary calls do
+ * not consume Java stack.
+ *
+ * A frame's locals sit directly below its operand stack. Arguments are
+ * pushed by the caller and become the callee's first locals in place. A
+ * tail call moves them down to the caller's frame instead and pushes no
+ * caller, so chains of tail calls run in constant space.
+ *
+ * When the program is compiled with tiering enabled, functions that get hot
+ * are handed to the Jit and later calls to them run the generated code.
+ *
+ * A call to a memoizable function is answered from the MemoCache when it
+ * can be. Otherwise the key is saved with the caller, and the return to
+ * that caller stores the result; tail calls do not change the result.
+ *
+ * Under a tracing collector the object stack is registered as a root; slots
+ * above the stack pointer are always cleared, so the whole array can be
+ * scanned.
+ */
+public final class VM implements RootSet {
+
+    private final CompiledProgram program;
+    private long[] lstack;
+    private Object[] ostack;
+
+    // Saved state of the callers of the running function
+    private CompiledFunction[] callerFunctions = new CompiledFunction[64];
+    private int[] callerPcs = new int[64];
+    private int[] callerFps = new int[64];
+    // Keys of the memoizable calls made by the callers, or null
+    private MemoCache.Key[] callerMemoKeys = new MemoCache.Key[64];
+    private int depth;
+
+    public VM(CompiledProgram program) {
+        this(program, 256);
+    }
+
+    private VM(CompiledProgram program, int capacity) {
+        this.program = program;
+        this.lstack = new long[capacity];
+        this.ostack = new Object[capacity];
+    }
+
+    public static Object runMain(CompiledProgram program, long arg) {
+        CompiledFunction main = program.lookup("main");
+        if (main == null) {
+            throw new RuntimeException("Main function not found");
+        }
+        if (main.arity != 1) {
+            throw new RuntimeException("Incorrect number of arguments for function: main");
+        }
+        VM vm = new VM(program);
+        // The parameter is read from whichever stack its declared type selects
+        vm.lstack[0] = arg;
+        vm.ostack[0] = arg;
+        return vm.run(main);
+    }
+
+    /**
+     * Runs a thunk on a new VM whose stacks start with the parent's locals,
+     * copied once from locals[base] and objects[base]. The parent does not
+     * touch its frame until both thunks are done, and thunks cannot assign
+     * variables, so the copy is only needed because the thunk's operand
+     * stack sits right above its locals.
+     */
+    private static Object runThunk(CompiledProgram program, CompiledFunction thunk, long[] locals, Object[] objects,
+            int base) {
+        VM vm = new VM(program, thunk.frameSize());
+        System.arraycopy(locals, base, vm.lstack, 0, thunk.numLocals);
+        System.arraycopy(objects, base, vm.ostack, 0, thunk.numLocals);
+        return vm.run(thunk);
+    }
+
+    @Override
+    public Object[] roots() {
+        return ostack;
+    }
+
+    private Object run(CompiledFunction entry) {
+        if (!ThreadContext.tracing) {
+            return execute(entry);
+        }
+        ThreadContext context = ThreadContext.current();
+        context.push(this);
+        try {
+            return execute(entry);
+        } finally {
+            context.pop();
+        }
+    }
+
+    private Object execute(CompiledFunction entry) {
+        Interpreter interpreter = Interpreter.getInterpreter();
+        MemoCache memoCache = interpreter.getMemoCache();
+        CompiledFunction fn = entry;
+        int[] code = fn.code;
+        long[] constants = fn.longConstants;
+        int pc = 0;
+        int fp = 0;
+        int sp = fn.numLocals;
+        ensureCapacity(fp + fn.frameSize());
+        long[] ls = lstack;
+        Object[] os = ostack;
+
+        while (true) {
+            switch (code[pc++]) {
+                case LCONST:
+                    ls[sp++] = constants[code[pc++]];
+                    break;
+                case NIL:
+                    os[sp++] = null;
+                    break;
+                case LLOAD:
+                    ls[sp++] = ls[fp + code[pc++]];
+                    break;
+                case OLOAD:
+                    os[sp++] = os[fp + code[pc++]];
+                    break;
+                case LSTORE:
+                    ls[fp + code[pc++]] = ls[--sp];
+                    break;
+                case OSTORE:
+                    os[fp + code[pc++]] = os[--sp];
+                    os[sp] = null;
+                    break;
+                case BOX:
+                    os[sp - 1] = ls[sp - 1];
+                    break;
+                case BOX_BOOL:
+                    os[sp - 1] = ls[sp - 1] != 0;
+                    break;
+                case UNBOX:
+                    ls[sp - 1] = unbox(os[sp - 1]);
+                    os[sp - 1] = null;
+                    break;
+                case UNBOX_BOOL:
+                    ls[sp - 1] = (Boolean) os[sp - 1] ? 1 : 0;
+                    os[sp - 1] = null;
+                    break;
+                case LPOP:
+                    sp--;
+                    break;
+                case OPOP:
+                    os[--sp] = null;
+                    break;
+
+                case LADD:
+                    sp--;
+                    ls[sp - 1] += ls[sp];
+                    break;
+                case LSUB:
+                    sp--;
+                    ls[sp - 1] -= ls[sp];
+                    break;
+                case LMUL:
+                    sp--;
+                    ls[sp - 1] *= ls[sp];
+                    break;
+                case LNEG:
+                    ls[sp - 1] = -ls[sp - 1];
+                    break;
+                case LLT:
+                    sp--;
+                    ls[sp - 1] = ls[sp - 1] < ls[sp] ? 1 : 0;
+                    break;
+                case LGT:
+                    sp--;
+                    ls[sp - 1] = ls[sp - 1] > ls[sp] ? 1 : 0;
+                    break;
+                case LLE:
+                    sp--;
+                    ls[sp - 1] = ls[sp - 1] <= ls[sp] ? 1 : 0;
+                    break;
+                case LGE:
+                    sp--;
+                    ls[sp - 1] = ls[sp - 1] >= ls[sp] ? 1 : 0;
+                    break;
+                case LEQ:
+                    sp--;
+                    ls[sp - 1] = ls[sp - 1] == ls[sp] ? 1 : 0;
+                    break;
+                case LNE:
+                    sp--;
+                    ls[sp - 1] = ls[sp - 1] != ls[sp] ? 1 : 0;
+                    break;
+                case AND:
+                    sp--;
+                    ls[sp - 1] &= ls[sp];
+                    break;
+                case OR:
+                    sp--;
+                    ls[sp - 1] |= ls[sp];
+                    break;
+                case NOT:
+                    ls[sp - 1] ^= 1;
+                    break;
+
+                case JMP: {
+                    int target = code[pc];
+                    if (target < pc) {
+                        countHotness(fn);
+                        ThreadContext.poll();
+                    }
+                    pc = target;
+                    break;
+                }
+                case JLT:
+                    sp -= 2;
+                    pc = ls[sp] < ls[sp + 1] ? code[pc] : pc + 1;
+                    break;
+                case JGT:
+                    sp -= 2;
+                    pc = ls[sp] > ls[sp + 1] ? code[pc] : pc + 1;
+                    break;
+                case JLE:
+                    sp -= 2;
+                    pc = ls[sp] <= ls[sp + 1] ? code[pc] : pc + 1;
+                    break;
+                case JGE:
+                    sp -= 2;
+                    pc = ls[sp] >= ls[sp + 1] ? code[pc] : pc + 1;
+                    break;
+                case JEQ:
+                    sp -= 2;
+                    pc = ls[sp] == ls[sp + 1] ? code[pc] : pc + 1;
+                    break;
+                case JNE:
+                    sp -= 2;
+                    pc = ls[sp] != ls[sp + 1] ? code[pc] : pc + 1;
+                    break;
+
+                case CALL: {
+                    CompiledFunction callee = program.functions[code[pc++]];
+                    countHotness(callee);
+                    ThreadContext.poll();
+                    if (callee.jitEntry != null) {
+                        sp = callJit(callee, ls, os, sp);
+                        break;
+                    }
+                    MemoCache.Key memoKey = null;
+                    if (callee.memoizable && memoCache != null) {
+                        memoKey = MemoCache.key(callee.name, ls, sp - callee.arity, callee.arity);
+                        Long memoized = memoCache.get(memoKey);
+                        if (memoized != null) {
+                            sp -= callee.arity;
+                            ls[sp++] = memoized;
+                            break;
+                        }
+                    }
+                    pushCaller(fn, pc, fp, memoKey);
+                    fn = callee;
+                    code = fn.code;
+                    constants = fn.longConstants;
+                    pc = 0;
+                    fp = sp - fn.arity;
+                    sp = fp + fn.numLocals;
+                    ensureCapacity(fp + fn.frameSize());
+                    ls = lstack;
+                    os = ostack;
+                    Arrays.fill(os, fp + fn.arity, sp, null);
+                    break;
+                }
+                case TAILCALL: {
+                    CompiledFunction callee = program.functions[code[pc++]];
+                    countHotness(callee);
+                    ThreadContext.poll();
+                    if (callee.jitEntry != null) {
+                        // The return after TAILCALL hands back the result
+                        sp = callJit(callee, ls, os, sp);
+                        break;
+                    }
+                    // The callee takes over this frame; the arguments become its first locals at fp
+                    int argsStart = sp - callee.arity;
+                    System.arraycopy(ls, argsStart, ls, fp, callee.arity);
+                    System.arraycopy(os, argsStart, os, fp, callee.arity);
+                    int top = Math.max(sp, fp + callee.numLocals);
+                    fn = callee;
+                    code = fn.code;
+                    constants = fn.longConstants;
+                    pc = 0;
+                    sp = fp + fn.numLocals;
+                    ensureCapacity(fp + fn.frameSize());
+                    ls = lstack;
+                    os = ostack;
+                    Arrays.fill(os, fp + fn.arity, top, null);
+                    break;
+                }
+                case GENERIC_CALL: {
+                    String name = fn.names[code[pc++]];
+                    int argc = code[pc++];
+                    List<Object> args = new ArrayList<>(argc);
+                    for (int i = sp - argc; i < sp; i++) {
+                        args.add(os[i]);
+                        os[i] = null;
+                    }
+                    sp -= argc;
+                    os[sp++] = interpreter.executeBuiltinOrUserFunction(name, args);
+                    break;
+                }
+                case LRETURN: {
+                    long value = ls[sp - 1];
+                    Arrays.fill(os, fp, sp, null);
+                    if (depth == 0) {
+                        return value;
+                    }
+                    sp = fp;
+                    ls[sp++] = value;
+                    depth--;
+                    if (callerMemoKeys[depth] != null) {
+                        memoCache.put(callerMemoKeys[depth], value);
+                        callerMemoKeys[depth] = null;
+                    }
+                    fn = callerFunctions[depth];
+                    pc = callerPcs[depth];
+                    fp = callerFps[depth];
+                    code = fn.code;
+                    constants = fn.longConstants;
+                    break;
+                }
+                case ORETURN: {
+                    Object value = os[sp - 1];
+                    Arrays.fill(os, fp, sp, null);
+                    if (depth == 0) {
+                        return value;
+                    }
+                    sp = fp;
+                    os[sp++] = value;
+                    depth--;
+                    fn = callerFunctions[depth];
+                    pc = callerPcs[depth];
+                    fp = callerFps[depth];
+                    code = fn.code;
+                    constants = fn.longConstants;
+                    break;
+                }
+                case CONCURRENT:
+                case PARALLEL: {
+                    boolean parallel = code[pc - 1] == PARALLEL;
+                    if (parallel && !interpreter.forkParallel()) {
+                        pc += 4; // run the serial code that follows
+                        break;
+                    }
+                    int operator = code[pc++];
+                    CompiledFunction leftThunk = program.functions[code[pc++]];
+                    CompiledFunction rightThunk = program.functions[code[pc++]];
+                    Object value = concurrent(program, operator, leftThunk, rightThunk, parallel, ls, os, fp);
+                    if (operator == BinaryExpr.DOT) {
+                        os[sp++] = value;
+                    } else {
+                        ls[sp++] = (Long) value;
+                    }
+                    if (parallel) {
+                        pc = code[pc];
+                    }
+                    break;
+                }
+
+                case DOT:
+                    sp--;
+                    os[sp - 1] = new HeapObject(os[sp - 1], os[sp]);
+                    os[sp] = null;
+                    break;
+                case REFCAST:
+                    refCast(os[sp - 1]);
+                    break;
+                case LEFT:
+                    os[sp - 1] = interpreter.left(os[sp - 1]);
+                    break;
+                case RIGHT:
+                    os[sp - 1] = interpreter.right(os[sp - 1]);
+                    break;
+                case SETLEFT:
+                    sp--;
+                    ls[sp - 1] = (Long) interpreter.setLeft(os[sp - 1], os[sp]);
+                    os[sp - 1] = null;
+                    os[sp] = null;
+                    break;
+                case SETRIGHT:
+                    sp--;
+                    ls[sp - 1] = (Long) interpreter.setRight(os[sp - 1], os[sp]);
+                    os[sp - 1] = null;
+                    os[sp] = null;
+                    break;
+                case ISATOM: {
+                    Object value = os[sp - 1];
+                    ls[sp - 1] = (value == null || value instanceof Long) ? 1 : 0;
+                    os[sp - 1] = null;
+                    break;
+                }
+                case ISNIL:
+                    ls[sp - 1] = os[sp - 1] == null ? 1 : 0;
+                    os[sp - 1] = null;
+                    break;
+                case ACQ:
+                    ls[sp - 1] = (Long) interpreter.acq(os[sp - 1], fn.names[code[pc++]]);
+                    os[sp - 1] = null;
+                    break;
+                case TRYACQ:
+                    ls[sp - 1] = (Long) interpreter.tryAcq(os[sp - 1], fn.names[code[pc++]]);
+                    os[sp - 1] = null;
+                    break;
+                case REL:
+                    ls[sp - 1] = (Long) interpreter.rel(os[sp - 1]);
+                    os[sp - 1] = null;
+                    break;
+                case RANDOMINT:
+                    ls[sp - 1] = (Long) interpreter.randomInt(os[sp - 1]);
+                    os[sp - 1] = null;
+                    break;
+                case FREE:
+                    ls[sp - 1] = (Long) interpreter.free(os[sp - 1]);
+                    os[sp - 1] = null;
+                    break;
+
+                case LPRINT:
+                    System.out.println(ls[--sp]);
+                    break;
+                case OPRINT:
+                    System.out.println(os[--sp]);
+                    os[sp] = null;
+                    break;
+                case FALL_OFF:
+                    throw new RuntimeException("Function must end with a return statement: " + fn.name);
+                default:
+                    throw new IllegalStateException("Bad opcode " + code[pc - 1] + " in " + fn.name);
+            }
+        }
+    }
+
+    /**
+     * Evaluates both sides of a concurrent expression in parallel, each
+     * starting from the parent's locals at locals[base] and objects[base],
+     * and combines the results. A parallel one is a serial expression that
+     * the Parallelizer marked and forkParallel() allowed to fork.
+     */
+    static Object concurrent(CompiledProgram program, int operator, CompiledFunction leftThunk,
+            CompiledFunction rightThunk, boolean parallel, long[] locals, Object[] objects, int base) {
+        Supplier<Object> left = () -> runThunk(program, leftThunk, locals, objects, base);
+        Supplier<Object> right = () -> runThunk(program, rightThunk, locals, objects, base);
+        Interpreter interpreter = Interpreter.getInterpreter();
+        Object[] values = parallel ? interpreter.forkSides(left, right) : interpreter.evaluateConcurrent(left, right);
+        switch (operator) {
+            case BinaryExpr.PLUS:
+                return (Long) values[0] + (Long) values[1];
+            case BinaryExpr.MINUS:
+                return (Long) values[0] - (Long) values[1];
+            case BinaryExpr.TIMES:
+                return (Long) values[0] * (Long) values[1];
+            case BinaryExpr.DOT:
+                return new HeapObject(values[0], values[1]);
+            default:
+                throw new RuntimeException("Invalid operation in concurrent expression");
+        }
+    }
+
+    static long unbox(Object value) {
+        if (!(value instanceof Long)) {
+            Interpreter.fatalError("Dynamic cast to int failed", Interpreter.EXIT_DYNAMIC_TYPE_ERROR);
+        }
+        return (Long) value;
+    }
+
+    static Object refCast(Object value) {
+        if (value != null && !(value instanceof HeapObject)) {
+            Interpreter.fatalError("Cannot cast non-reference to Ref", Interpreter.EXIT_DYNAMIC_TYPE_ERROR);
+        }
+        return value;
+    }
+
+    /** Runs a compiled callee on the arguments below sp and returns sp with its result pushed. */
+    private static int callJit(CompiledFunction callee, long[] ls, Object[] os, int sp) {
+        int argsStart = sp - callee.arity;
+        Jit.invoke(callee.jitEntry, ls, os, argsStart);
+        if (callee.returnsLong) {
+            os[argsStart] = null;
+        }
+        for (int i = argsStart + 1; i < sp; i++) {
+            os[i] = null;
+        }
+        return argsStart + 1;
+    }
+
+    private void countHotness(CompiledFunction fn) {
+        if (program.jitEnabled && fn.jitEntry == null && !fn.jitFailed && ++fn.hotness >= Jit.THRESHOLD) {
+            Jit.compile(program, fn);
+        }
+    }
+
+    private void pushCaller(CompiledFunction fn, int pc, int fp, MemoCache.Key memoKey) {
+        if (depth == callerFunctions.length) {
+            int length = depth * 2;
+            callerFunctions = Arrays.copyOf(callerFunctions, length);
+            callerPcs = Arrays.copyOf(callerPcs, length);
+            callerFps = Arrays.copyOf(callerFps, length);
+            callerMemoKeys = Arrays.copyOf(callerMemoKeys, length);
+        }
+        callerFunctions[depth] = fn;
+        callerPcs[depth] = pc;
+        callerFps[depth] = fp;
+        callerMemoKeys[depth] = memoKey;
+        depth++;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > lstack.length) {
+            int length = Math.max(size, lstack.length * 2);
+            lstack = Arrays.copyOf(lstack, length);
+            ostack = Arrays.copyOf(ostack, length);
+        }
+    }
+}